@@ -3,12 +3,23 @@ package io.github.jochyoua.offlinecommands;
 import com.cjcrafter.foliascheduler.FoliaCompatibility;
 import com.cjcrafter.foliascheduler.ServerImplementation;
 import io.github.jochyoua.offlinecommands.api.DebugLogger;
+import io.github.jochyoua.offlinecommands.api.DispatchScheduler;
+import io.github.jochyoua.offlinecommands.api.MessageCatalog;
+import io.github.jochyoua.offlinecommands.api.PlaceholderTemplate;
+import io.github.jochyoua.offlinecommands.api.Settings;
+import io.github.jochyoua.offlinecommands.commands.CompletionIndex;
 import io.github.jochyoua.offlinecommands.commands.OfflineCommandExecutor;
 import io.github.jochyoua.offlinecommands.libs.Metrics;
+import io.github.jochyoua.offlinecommands.listeners.AsyncTabCompleteListener;
+import io.github.jochyoua.offlinecommands.listeners.PlaceholderHookListener;
 import io.github.jochyoua.offlinecommands.listeners.PlayerConnectionListener;
+import io.github.jochyoua.offlinecommands.storage.AsyncStorageManager;
+import io.github.jochyoua.offlinecommands.storage.CommandStatistics;
 import io.github.jochyoua.offlinecommands.storage.CommandStorage;
+import io.github.jochyoua.offlinecommands.storage.PendingUserFilter;
 import io.github.jochyoua.offlinecommands.storage.SoundStorage;
 import io.github.jochyoua.offlinecommands.storage.StorageManager;
+import io.github.jochyoua.offlinecommands.storage.UserPrefetchCache;
 import io.github.jochyoua.offlinecommands.storage.UserStorage;
 import lombok.Getter;
 import org.bukkit.Bukkit;
@@ -21,6 +32,9 @@ import java.sql.SQLException;
 import java.util.List;
 import java.util.logging.Level;
 
+import static io.github.jochyoua.offlinecommands.VariableConstants.SETTINGS_PATH;
+import static io.github.jochyoua.offlinecommands.VariableConstants.VARIABLES_PATH;
+
 /**
  * Main class for the OfflineCommands plugin.
  */
@@ -37,16 +51,35 @@ public final class OfflineCommands extends JavaPlugin {
         } catch (ClassNotFoundException e) {
             Bukkit.getConsoleSender().sendMessage("Unable to locate the class 'org.sqlite.JDBC'. SQLite will not work.");
         }
+
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            Bukkit.getConsoleSender().sendMessage("Unable to locate the class 'org.h2.Driver'. H2 will not work.");
+        }
     }
 
-    private StorageManager storageManager;
+    private volatile StorageManager storageManager;
+    private volatile MessageCatalog messages;
+    private volatile Settings settings = Settings.defaults();
+    private AsyncStorageManager asyncStorageManager;
+    private CompletionIndex completionIndex;
+    private CommandStatistics commandStatistics;
+    private PendingUserFilter pendingUserFilter;
+    private UserPrefetchCache userPrefetchCache;
+    private DispatchScheduler dispatchScheduler;
     private DebugLogger debugLogger;
     private ServerImplementation scheduler;
 
     public void onReload() {
         this.reloadConfig();
-        storageManager.closeConnection();
-        this.initializeStorageManager();
+        loadSettings();
+        loadMessages();
+        PlaceholderTemplate.clearCache();
+        asyncStorageManager.replaceStorage(() -> {
+            storageManager.closeConnection();
+            this.initializeStorageManager();
+        });
 
         this.saveConfig();
     }
@@ -54,11 +87,25 @@ public final class OfflineCommands extends JavaPlugin {
     @Override
     public void onEnable() {
         setupConfig();
+        loadSettings();
+        loadMessages();
+        debugLogger = new DebugLogger(settings.isDebugToFile() ? this : null, settings);
+        asyncStorageManager = new AsyncStorageManager(this);
+        completionIndex = new CompletionIndex(settings.getTabCompleteMaxEntries());
+        asyncStorageManager.addListener(completionIndex);
+        commandStatistics = new CommandStatistics();
+        asyncStorageManager.addListener(commandStatistics);
+        pendingUserFilter = new PendingUserFilter();
+        asyncStorageManager.addListener(pendingUserFilter);
+        userPrefetchCache = new UserPrefetchCache(asyncStorageManager, settings.getPrefetchExpireMillis());
+        asyncStorageManager.addListener(userPrefetchCache);
+        dispatchScheduler = new DispatchScheduler(this);
         initializeStorageManager();
+        recoverClaims();
+        asyncStorageManager.databaseLoaded();
         registerEvents();
         setupCommand();
         setupMetrics();
-        debugLogger = new DebugLogger(getConfig().getBoolean("settings.log-to-file", true) ? this : null);
         this.scheduler = new FoliaCompatibility(this).getServerImplementation();
     }
 
@@ -66,8 +113,20 @@ public final class OfflineCommands extends JavaPlugin {
     public void onDisable() {
         HandlerList.unregisterAll(this);
         unregisterClasses();
+        if (dispatchScheduler != null) {
+            dispatchScheduler.releaseAll();
+        }
+        if (asyncStorageManager != null) {
+            asyncStorageManager.shutdown();
+        }
         this.scheduler.cancelTasks();
         this.scheduler = null;
+        if (storageManager != null) {
+            storageManager.closeConnection();
+        }
+        if (debugLogger != null) {
+            debugLogger.shutdown();
+        }
     }
 
     private void setupConfig() {
@@ -76,6 +135,33 @@ public final class OfflineCommands extends JavaPlugin {
         saveDefaultConfig();
     }
 
+    /**
+     * Validates the settings section and publishes it as a new snapshot.
+     * If any value is invalid the whole section is rejected and the previous snapshot, or the defaults
+     * on startup, stays in use. Settings that are only read on startup are published as well but warned about.
+     */
+    private void loadSettings() {
+        try {
+            Settings loaded = Settings.load(getConfig().getConfigurationSection(SETTINGS_PATH));
+            List<String> restartRequired = loaded.getRestartRequiredChanges(settings);
+            if (debugLogger != null && !restartRequired.isEmpty()) {
+                debugLogger.log(Level.WARNING, "These settings only take effect after a restart: " + String.join(", ", restartRequired));
+            }
+            this.settings = loaded;
+        } catch (IllegalArgumentException e) {
+            String message = e.getMessage() + ". Keeping the previous settings.";
+            if (debugLogger != null) {
+                debugLogger.log(Level.WARNING, message);
+            } else {
+                getLogger().warning(message);
+            }
+        }
+    }
+
+    private void loadMessages() {
+        this.messages = new MessageCatalog(getConfig().getConfigurationSection(VARIABLES_PATH));
+    }
+
     private void initializeStorageManager() {
         try {
             this.storageManager = new StorageManager(this);
@@ -85,7 +171,29 @@ public final class OfflineCommands extends JavaPlugin {
         }
     }
 
+    /**
+     * Settles commands left claimed by the previous run, which stopped before it could confirm whether they ran,
+     * according to {@code claim-recovery-policy}. Only done on startup, as claims made after a reload are still live.
+     */
+    private void recoverClaims() {
+        if (storageManager == null) {
+            return;
+        }
+        boolean retry = "RETRY".equals(settings.getClaimRecoveryPolicy());
+        try {
+            int recovered = storageManager.recoverClaims(retry);
+            if (recovered > 0) {
+                getDebugLogger().log(Level.WARNING, String.format("%d commands were claimed but not confirmed when the server last stopped and have been %s.",
+                        recovered, retry ? "queued again" : "discarded"));
+            }
+        } catch (SQLException e) {
+            getDebugLogger().log(Level.WARNING, "Failed to recover claimed commands, fix error before continuing: " + e.getMessage());
+        }
+    }
+
     private void registerEvents() {
+        PlaceholderTemplate.refreshPlaceholderApi();
+        getServer().getPluginManager().registerEvents(new PlaceholderHookListener(), this);
         getServer().getPluginManager().registerEvents(new PlayerConnectionListener(this), this);
     }
 
@@ -96,6 +204,9 @@ public final class OfflineCommands extends JavaPlugin {
         if (offlineCommand != null) {
             offlineCommand.setExecutor(offlineCommandExecutor);
             offlineCommand.setTabCompleter(offlineCommandExecutor);
+            if (AsyncTabCompleteListener.isSupported()) {
+                getServer().getPluginManager().registerEvents(new AsyncTabCompleteListener(offlineCommand, offlineCommandExecutor), this);
+            }
         } else {
             getDebugLogger().log(Level.WARNING, "Command 'offlinecommands' was unsuccessfully registered/null, perhaps a corrupt plugin.yml?");
         }
@@ -104,11 +215,7 @@ public final class OfflineCommands extends JavaPlugin {
     private void setupMetrics() {
         Metrics offlineMetrics = new Metrics(this, 13922);
 
-        offlineMetrics.addCustomChart(new Metrics.SingleLineChart("commands", () -> {
-            List<UserStorage> userStorageList = getStorageManager().getUserStorageList();
-            return (int) userStorageList.stream()
-                    .mapToLong(userStorage -> userStorage.getCommands().size()).sum();
-        }));
+        offlineMetrics.addCustomChart(new Metrics.SingleLineChart("commands", () -> (int) commandStatistics.getTotalCommands()));
     }
 
     private void unregisterClasses() {
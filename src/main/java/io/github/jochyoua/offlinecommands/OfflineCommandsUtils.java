@@ -1,13 +1,12 @@
 package io.github.jochyoua.offlinecommands;
 
+import io.github.jochyoua.offlinecommands.api.PlaceholderTemplate;
 import io.github.jochyoua.offlinecommands.storage.CommandStorage;
-import me.clip.placeholderapi.PlaceholderAPI;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
-import org.bukkit.plugin.Plugin;
 
 import java.util.AbstractMap;
 import java.util.Map;
@@ -22,19 +21,14 @@ public final class OfflineCommandsUtils {
     /**
      * Replaces placeholders in a given string with values from a player object.
      * Uses PlaceholderAPI plugin if available and enabled, otherwise only replaces {playername} with player's name.
+     * The string is parsed into a cached {@link PlaceholderTemplate} the first time it is seen.
      *
      * @param string the string to process
      * @param player the player object to get values from
      * @return the string with placeholders replaced
      */
     public static String preparePlaceholders(String string, Player player) {
-        Plugin placeholderAPI = Bukkit.getPluginManager().getPlugin("PlaceholderAPI");
-        string = string.replaceAll("(?i)\\{playername}", player.getName());
-
-        if (placeholderAPI != null && placeholderAPI.isEnabled()) {
-            return PlaceholderAPI.setPlaceholders(player, string);
-        }
-        return string;
+        return PlaceholderTemplate.of(string).render(player);
     }
 
     /**
@@ -75,26 +69,60 @@ public final class OfflineCommandsUtils {
      * Executes a command as a player or as the console, depending on the command storage object.
      * Checks the required permission and the executor of the command before dispatching it.
      * Optionally sends a message to the player before executing the command.
+     * Everything runs on the calling thread; on Folia prefer {@link io.github.jochyoua.offlinecommands.api.DispatchScheduler},
+     * which runs each part on the region that owns it.
      *
      * @param player  the player to execute the command as or to send the message to
      * @param command the command storage object that contains the command value, message, executor, and required permission
      */
     public static void runCommandAsPlayer(Player player, CommandStorage command) {
-        if (command.getRequiredPermission().isEmpty() || player.hasPermission(command.getRequiredPermission())) {
-            if (!command.getMessage().isEmpty()) {
-                sendMessage(player, applyChatColors(command.getMessage()), true);
-            }
+        if (hasRequiredPermission(player, command)) {
+            sendCommandFeedback(player, command);
+            dispatchCommand(player, command);
+        }
+    }
 
-            if (command.getSoundStorage() != null) {
-                command.getSoundStorage().playSoundForPlayer(player);
-            }
+    /**
+     * Checks whether the player has the permission the command requires, if any.
+     *
+     * @param player  the player to check
+     * @param command the command storage object that contains the required permission
+     * @return true if the command may run for the player
+     */
+    public static boolean hasRequiredPermission(Player player, CommandStorage command) {
+        return command.getRequiredPermission().isEmpty() || player.hasPermission(command.getRequiredPermission());
+    }
 
-            String preparedCommand = prepareCommand(command.getCommandValue(), player);
-            if (command.getExecutor() == CommandStorage.Executor.CONSOLE) {
-                Bukkit.dispatchCommand(Bukkit.getConsoleSender(), preparedCommand);
-            } else if (command.getExecutor() == CommandStorage.Executor.PLAYER && player.isOnline()) {
-                Bukkit.dispatchCommand(player, preparedCommand);
-            }
+    /**
+     * Sends the command's message and plays its sound for the player, if it has any.
+     * Touches the player, so on Folia it must run on the player's region.
+     *
+     * @param player  the player to send the message and play the sound to
+     * @param command the command storage object that contains the message and sound
+     */
+    public static void sendCommandFeedback(Player player, CommandStorage command) {
+        if (!command.getMessage().isEmpty()) {
+            sendMessage(player, applyChatColors(command.getMessage()), true);
+        }
+
+        if (command.getSoundStorage() != null) {
+            command.getSoundStorage().playSoundForPlayer(player);
+        }
+    }
+
+    /**
+     * Dispatches the command as the console or as the player, depending on its executor.
+     * Console commands must run on the global region and player commands on the player's region.
+     *
+     * @param player  the player to execute the command as or for
+     * @param command the command storage object that contains the command value and executor
+     */
+    public static void dispatchCommand(Player player, CommandStorage command) {
+        String preparedCommand = prepareCommand(command.getCommandValue(), player);
+        if (command.getExecutor() == CommandStorage.Executor.CONSOLE) {
+            Bukkit.dispatchCommand(Bukkit.getConsoleSender(), preparedCommand);
+        } else if (command.getExecutor() == CommandStorage.Executor.PLAYER && player.isOnline()) {
+            Bukkit.dispatchCommand(player, preparedCommand);
         }
     }
 
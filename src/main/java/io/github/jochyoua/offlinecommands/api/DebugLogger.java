@@ -3,25 +3,73 @@ package io.github.jochyoua.offlinecommands.api;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Writes debug messages to {@code debug/<LEVEL>.log} without doing any file I/O on the calling thread.
+ * <p>
+ * Messages are put into a bounded ring buffer and written in batches by a single background thread that
+ * keeps the log files open. If the buffer is full the message is dropped and counted instead of blocking.
+ * A log file is rotated once it grows past {@code debug-max-file-size-kb} or a new day starts; rotated files
+ * are gzipped and deleted after {@code debug-retention-days}. Warnings are still printed to the console right away.
+ * </p>
+ */
 public class DebugLogger {
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter ROTATED_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
-    private static final long ONE_DAY_MILLIS = 24 * 60 * 60 * 1000L;
     private final Plugin plugin;
-    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final boolean captureCaller;
+    private final long maxFileBytes;
+    private final long retentionMillis;
+    private final LogRingBuffer<Entry> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running;
 
-    public DebugLogger(Plugin plugin) {
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Map<String, LogFile> files = new HashMap<>();
+    private long nextSweep;
+
+    /**
+     * @param plugin   the plugin whose data folder holds the logs, or null to only print warnings to the console
+     * @param settings the settings controlling the buffer, rotation and retention
+     */
+    public DebugLogger(Plugin plugin, Settings settings) {
         this.plugin = plugin;
+        this.captureCaller = settings.isDebugCaptureCaller();
+        this.maxFileBytes = settings.getDebugMaxFileSizeKb() * 1024L;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(settings.getDebugRetentionDays());
+        this.buffer = new LogRingBuffer<>(settings.getDebugBufferSize());
+        if (plugin == null) {
+            this.writer = null;
+            return;
+        }
+        this.running = true;
+        this.writer = new Thread(this::run, "OfflineCommands-DebugLogger");
+        this.writer.setDaemon(true);
+        this.writer.start();
     }
 
     public void log(Level level, String message) {
@@ -29,56 +77,228 @@ public class DebugLogger {
             Bukkit.getLogger().warning(message);
         }
 
-        if (plugin == null) {
+        if (!running) {
             return;
         }
 
-        String timeStamp = LocalDateTime.now().format(formatter);
-        StackTraceElement element = getCallerDetails();
+        StackTraceElement caller = captureCaller ? new Throwable().getStackTrace()[1] : null;
+        if (!buffer.offer(new Entry(System.currentTimeMillis(), level, message, caller))) {
+            dropped.incrementAndGet();
+        } else if (buffer.size() > buffer.capacity() / 2) {
+            LockSupport.unpark(writer);
+        }
+    }
 
-        String logMessage = String.format("%s [%s] %s.%s(%s:%d) -%n %s", timeStamp, level.getName(),
-                element.getClassName(), element.getMethodName(), element.getFileName(), element.getLineNumber(), message);
+    /**
+     * Writes everything still buffered, closes the log files and stops the writer thread.
+     */
+    public void shutdown() {
+        if (writer == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        writeLog(level.getName(), logMessage);
-        purgeOldLogs();
+    private void run() {
+        while (running) {
+            LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+            drain();
+            if (System.currentTimeMillis() >= nextSweep) {
+                purgeOldLogs();
+                nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+            }
+        }
+        drain();
+        for (LogFile file : files.values()) {
+            file.close();
+        }
+        files.clear();
     }
 
-    private StackTraceElement getCallerDetails() {
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        return stackTrace[3];
+    /**
+     * Writes every buffered message, then flushes the files that were written to.
+     */
+    private void drain() {
+        Entry entry;
+        boolean written = false;
+        while ((entry = buffer.poll()) != null) {
+            write(entry.level.getName(), entry.timestamp, format(entry));
+            written = true;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            long now = System.currentTimeMillis();
+            write(Level.WARNING.getName(), now, String.format("%s [%s] -%n %d debug messages were dropped because the log buffer was full",
+                    timestamp(now), Level.WARNING.getName(), lost));
+            written = true;
+        }
+        if (written) {
+            for (LogFile file : files.values()) {
+                file.flush();
+            }
+        }
     }
 
-    private void writeLog(String level, String message) {
-        File logDir = new File(plugin.getDataFolder(), "debug");
-        if (!logDir.exists()) {
-            logDir.mkdirs();
+    private String format(Entry entry) {
+        if (entry.caller == null) {
+            return String.format("%s [%s] -%n %s", timestamp(entry.timestamp), entry.level.getName(), entry.message);
         }
+        return String.format("%s [%s] %s.%s(%s:%d) -%n %s", timestamp(entry.timestamp), entry.level.getName(),
+                entry.caller.getClassName(), entry.caller.getMethodName(), entry.caller.getFileName(), entry.caller.getLineNumber(), entry.message);
+    }
+
+    private String timestamp(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone).format(TIMESTAMP_FORMAT);
+    }
 
-        File logFile = new File(logDir, level + ".log");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true))) {
-            writer.write(message);
-            writer.newLine();
+    private void write(String level, long timestamp, String message) {
+        LogFile file = files.computeIfAbsent(level, LogFile::new);
+        byte[] bytes = (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file.out != null && (timestamp >= file.dayEnd || file.bytes + bytes.length > maxFileBytes)) {
+                file.rotate();
+            }
+            if (file.out == null) {
+                file.open(timestamp);
+            }
+            file.out.write(bytes);
+            file.bytes += bytes.length;
         } catch (IOException e) {
-            e.printStackTrace();
+            Bukkit.getLogger().warning("Failed to write debug log " + file.path.getName() + ": " + e.getMessage());
+            file.close();
         }
     }
 
+    /**
+     * Deletes rotated logs, and active logs nothing was written to, that are older than the retention period.
+     */
     private void purgeOldLogs() {
-        File logDir = new File(plugin.getDataFolder(), "debug");
-        if (!logDir.exists()) return;
-
-        File[] files = logDir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                try {
-                    FileTime fileTime = Files.getLastModifiedTime(Paths.get(file.getPath()));
-                    if (System.currentTimeMillis() - fileTime.toMillis() > ONE_DAY_MILLIS) {
-                        Files.delete(file.toPath());
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        File[] logs = getLogDirectory().listFiles();
+        if (logs == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (File log : logs) {
+            LogFile open = files.get(log.getName().endsWith(".log") ? log.getName().substring(0, log.getName().length() - 4) : "");
+            if ((open != null && open.out != null) || log.lastModified() >= cutoff) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(log.toPath());
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("Failed to delete old debug log " + log.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private File getLogDirectory() {
+        return new File(plugin.getDataFolder(), "debug");
+    }
+
+    private long startOfNextDay(LocalDate day) {
+        return day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private static class Entry {
+        private final long timestamp;
+        private final Level level;
+        private final String message;
+        private final StackTraceElement caller;
+
+        Entry(long timestamp, Level level, String message, StackTraceElement caller) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.message = message;
+            this.caller = caller;
+        }
+    }
+
+    /**
+     * One open {@code <LEVEL>.log} file. Only touched by the writer thread.
+     */
+    private class LogFile {
+        private final String level;
+        private final File path;
+        private OutputStream out;
+        private long bytes;
+        private LocalDate day;
+        private long dayEnd;
+
+        LogFile(String level) {
+            this.level = level;
+            this.path = new File(getLogDirectory(), level + ".log");
+        }
+
+        /**
+         * Opens the file for appending. A file left over from an earlier day is rotated first.
+         */
+        void open(long timestamp) throws IOException {
+            File directory = getLogDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("could not create " + directory);
+            }
+            LocalDate today = Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+            if (path.isFile()) {
+                this.day = Instant.ofEpochMilli(path.lastModified()).atZone(zone).toLocalDate();
+                if (day.isBefore(today) || path.length() >= maxFileBytes) {
+                    compress();
                 }
             }
+            this.out = new BufferedOutputStream(new FileOutputStream(path, true));
+            this.bytes = path.length();
+            this.day = today;
+            this.dayEnd = startOfNextDay(today);
+        }
+
+        /**
+         * Closes the file, moves it into a gzip archive named after its day and leaves it to be reopened.
+         */
+        void rotate() throws IOException {
+            close();
+            compress();
+        }
+
+        private void compress() throws IOException {
+            File archive;
+            int index = 0;
+            do {
+                archive = new File(path.getParentFile(), String.format("%s-%s.%d.log.gz", level, day.format(ROTATED_FORMAT), index++));
+            } while (archive.exists());
+
+            try (OutputStream gzip = new GZIPOutputStream(new FileOutputStream(archive))) {
+                Files.copy(path.toPath(), gzip);
+            }
+            Files.delete(path.toPath());
+        }
+
+        void flush() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("Failed to flush debug log " + path.getName() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("Failed to close debug log " + path.getName() + ": " + e.getMessage());
+            }
+            out = null;
         }
     }
 }
@@ -0,0 +1,417 @@
+package io.github.jochyoua.offlinecommands.api;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.OfflineCommandsUtils;
+import io.github.jochyoua.offlinecommands.storage.CommandStorage;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Runs stored commands spread over as many ticks as needed instead of all at once.
+ * <p>
+ * Every thread that runs stored commands spends at most {@code dispatch-budget-millis} and
+ * {@code dispatch-max-commands-per-tick} commands on them per tick; the rest waits for the next tick. The budget is
+ * counted on the thread that actually runs each command, so a long queue of player commands is spread out on the
+ * player's region just like console commands are on the global region. Each player's commands are dispatched in the
+ * order they were stored, and players take turns so that a long queue does not hold back everyone who joined after
+ * it. The drain task only runs while there is something queued.
+ * </p>
+ * <p>
+ * Dispatching follows Folia's threading rules: console commands run on the global region, while player commands,
+ * messages and sounds run on the region that owns the player. A run of player commands at the head of a queue is
+ * handed to the player's region as one task, which takes the commands off the queue one at a time as it runs them
+ * and hands the queue back once its budget is used up or a console command is next. Commands are only ever taken off
+ * a queue right before they run, and the lock guarding the queues is never held while a command runs.
+ * </p>
+ * <p>
+ * Every non-recurring command is handed to the player's {@link QueueListener} once it has been handled, so it can be
+ * deleted from storage. Commands still queued when the player leaves or the plugin disables are handed back to the
+ * listener as released, so their claims can be released and they run on the next join. This includes a queue handed
+ * to the region of a player who leaves before the task there runs, or whose task never runs because the player is
+ * gone: the queue is released when the player quits, and the task finds it released and does nothing.
+ * </p>
+ */
+public class DispatchScheduler {
+    private static final long TICK_NANOS = 50_000_000L;
+
+    private final OfflineCommands offlineCommands;
+    private final Deque<PlayerQueue> rotation = new ArrayDeque<>();
+    private final Map<UUID, PlayerQueue> queues = new HashMap<>();
+    private final ThreadLocal<TickBudget> budgets = ThreadLocal.withInitial(TickBudget::new);
+    private int queuedCommands;
+    private boolean drainScheduled;
+
+    private long dispatchedCommands;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    public DispatchScheduler(OfflineCommands offlineCommands) {
+        this.offlineCommands = offlineCommands;
+    }
+
+    /**
+     * Queues a player's stored commands for execution.
+     * If the player is still being drained from an earlier join, only commands that are not already queued are added,
+     * and the given listener takes over from the earlier one.
+     *
+     * @param player   the player to run the commands for
+     * @param commands the player's stored commands, in order
+     * @param listener told about every command leaving the queue and about the queue finishing
+     * @return false if nothing was queued, in which case the listener is never called
+     */
+    public synchronized boolean submit(Player player, List<CommandStorage> commands, QueueListener listener) {
+        PlayerQueue queue = queues.get(player.getUniqueId());
+        if (queue == null) {
+            if (commands.isEmpty()) {
+                return false;
+            }
+            queue = new PlayerQueue();
+            queues.put(player.getUniqueId(), queue);
+            rotation.addLast(queue);
+        }
+        queue.player = player;
+        queue.listener = listener;
+
+        long now = System.nanoTime();
+        for (CommandStorage command : commands) {
+            if (queue.known.add(command.getIdentifier().toLowerCase(Locale.ROOT))) {
+                queue.commands.addLast(new QueuedCommand(command, now));
+                queuedCommands++;
+            }
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    private synchronized void scheduleDrain() {
+        if (!drainScheduled && !rotation.isEmpty()) {
+            drainScheduled = true;
+            offlineCommands.getScheduler().global().runDelayed(this::drain, 1L);
+        }
+    }
+
+    /**
+     * Runs on the global region. Takes players in turn and runs the console command at the head of their queue, or
+     * hands their queue to their region if a player command is next, until this thread's budget is used up.
+     */
+    private void drain() {
+        synchronized (this) {
+            drainScheduled = false;
+        }
+        TickBudget budget = budgets.get();
+        while (hasBudget(budget)) {
+            PlayerQueue queue;
+            QueuedCommand queued = null;
+            boolean handOver = false;
+            synchronized (this) {
+                queue = rotation.pollFirst();
+                if (queue == null) {
+                    break;
+                }
+                if (queue.player.isOnline() && !queue.commands.isEmpty()) {
+                    queued = queue.commands.peekFirst();
+                    handOver = queued.command.getExecutor() == CommandStorage.Executor.PLAYER;
+                    if (handOver) {
+                        queue.busy = true;
+                    } else {
+                        take(queue);
+                    }
+                }
+            }
+
+            if (queued == null) {
+                finish(queue);
+            } else if (handOver) {
+                offlineCommands.getScheduler().entity(queue.player).run(() -> drainPlayer(queue));
+            } else {
+                long start = System.nanoTime();
+                runConsoleCommand(queue.player, queued.command);
+                budget.charge(System.nanoTime() - start);
+                consumed(queue, queued.command);
+                handBack(queue);
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Runs on the player's region. Runs the player commands at the head of the queue until a console command is next,
+     * the queue is empty or this thread's budget is used up, then hands the queue back to the rotation.
+     */
+    private void drainPlayer(PlayerQueue queue) {
+        TickBudget budget = budgets.get();
+        while (true) {
+            QueuedCommand queued;
+            synchronized (this) {
+                if (queue.finished) {
+                    return;
+                }
+                if (!queue.player.isOnline()) {
+                    break;
+                }
+                queued = queue.commands.peekFirst();
+                if (queued == null || queued.command.getExecutor() != CommandStorage.Executor.PLAYER || !hasBudget(budget)) {
+                    queue.busy = false;
+                    break;
+                }
+                take(queue);
+            }
+            long start = System.nanoTime();
+            runPlayerCommand(queue.player, queued.command);
+            budget.charge(System.nanoTime() - start);
+            consumed(queue, queued.command);
+        }
+        if (queue.player.isOnline()) {
+            handBack(queue);
+            scheduleDrain();
+        } else {
+            finish(queue);
+        }
+    }
+
+    private boolean hasBudget(TickBudget budget) {
+        Settings settings = offlineCommands.getSettings();
+        return budget.hasRoom(settings.getDispatchBudgetMillis() * 1_000_000L, settings.getDispatchMaxCommandsPerTick());
+    }
+
+    /**
+     * Takes the command at the head of the queue for dispatch. Must hold the lock.
+     */
+    private void take(PlayerQueue queue) {
+        QueuedCommand queued = queue.commands.pollFirst();
+        queuedCommands--;
+        recordWait(System.nanoTime() - queued.queuedAt);
+    }
+
+    private void consumed(PlayerQueue queue, CommandStorage command) {
+        if (!Boolean.TRUE.equals(command.getRecurring())) {
+            QueueListener listener;
+            synchronized (this) {
+                listener = queue.listener;
+            }
+            listener.onConsumed(command);
+        }
+    }
+
+    /**
+     * Puts a queue back into the rotation once a command of it has run, or finishes it if nothing is left.
+     */
+    private void handBack(PlayerQueue queue) {
+        synchronized (this) {
+            if (queue.finished) {
+                return;
+            }
+            if (!queue.commands.isEmpty()) {
+                rotation.addLast(queue);
+                return;
+            }
+        }
+        finish(queue);
+    }
+
+    /**
+     * Runs a single command for an online player right away, outside of the queue.
+     *
+     * @param player  the player to run the command for
+     * @param command the command to run
+     */
+    public void dispatch(Player player, CommandStorage command) {
+        if (command.getExecutor() == CommandStorage.Executor.PLAYER) {
+            offlineCommands.getScheduler().entity(player).run(() -> runPlayerCommand(player, command));
+        } else {
+            offlineCommands.getScheduler().global().run(() -> runConsoleCommand(player, command));
+        }
+    }
+
+    /**
+     * Runs a player command on the player's region.
+     */
+    private void runPlayerCommand(Player player, CommandStorage command) {
+        if (OfflineCommandsUtils.hasRequiredPermission(player, command)) {
+            OfflineCommandsUtils.sendCommandFeedback(player, command);
+            runSafely(command, () -> OfflineCommandsUtils.dispatchCommand(player, command));
+        }
+    }
+
+    /**
+     * Runs a console command on the global region; the feedback is sent from the player's region.
+     */
+    private void runConsoleCommand(Player player, CommandStorage command) {
+        if (OfflineCommandsUtils.hasRequiredPermission(player, command)) {
+            runSafely(command, () -> OfflineCommandsUtils.dispatchCommand(player, command));
+            offlineCommands.getScheduler().entity(player).run(() -> OfflineCommandsUtils.sendCommandFeedback(player, command));
+        }
+    }
+
+    private void runSafely(CommandStorage command, Runnable dispatch) {
+        try {
+            dispatch.run();
+        } catch (RuntimeException e) {
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to run command " + command.getIdentifier() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the queue, handing whatever is still queued back to its listener as released.
+     * Must not hold the lock, as the listener is called.
+     */
+    private void finish(PlayerQueue queue) {
+        QueueListener listener;
+        List<CommandStorage> released;
+        synchronized (this) {
+            if (queue.finished) {
+                return;
+            }
+            queue.finished = true;
+            queuedCommands -= queue.commands.size();
+            released = new ArrayList<>(queue.commands.size());
+            for (QueuedCommand queued : queue.commands) {
+                released.add(queued.command);
+            }
+            queue.commands.clear();
+            rotation.remove(queue);
+            queues.remove(queue.player.getUniqueId(), queue);
+            listener = queue.listener;
+        }
+        if (!released.isEmpty()) {
+            listener.onReleased(released);
+        }
+        listener.onFinished();
+    }
+
+    /**
+     * Drops the queue of a player who left and hands the commands still in it back through the release callback.
+     * Does nothing if the player has no queue.
+     *
+     * @param uuid the UUID of the player
+     */
+    public void release(UUID uuid) {
+        PlayerQueue queue;
+        synchronized (this) {
+            queue = queues.get(uuid);
+        }
+        if (queue != null) {
+            finish(queue);
+        }
+    }
+
+    /**
+     * Drops every queued command and hands it back through its player's release callback.
+     * Called while the plugin disables, before storage shuts down.
+     */
+    public void releaseAll() {
+        List<PlayerQueue> all;
+        synchronized (this) {
+            all = new ArrayList<>(queues.values());
+        }
+        for (PlayerQueue queue : all) {
+            finish(queue);
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        dispatchedCommands++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    }
+
+    /**
+     * @return the number of commands waiting to be dispatched
+     */
+    public synchronized int getQueueDepth() {
+        return queuedCommands;
+    }
+
+    /**
+     * @return the number of players with commands waiting to be dispatched
+     */
+    public synchronized int getQueuedPlayers() {
+        return queues.size();
+    }
+
+    /**
+     * @return the average time dispatched commands spent in the queue, in milliseconds
+     */
+    public synchronized long getAverageWaitMillis() {
+        return dispatchedCommands == 0 ? 0 : totalWaitNanos / dispatchedCommands / 1_000_000L;
+    }
+
+    /**
+     * @return the longest time a dispatched command spent in the queue, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000L;
+    }
+
+    private static class PlayerQueue {
+        private final Deque<QueuedCommand> commands = new ArrayDeque<>();
+        private final Set<String> known = new HashSet<>();
+        private QueueListener listener;
+        private Player player;
+        /**
+         * Handed to the player's region, and out of the rotation until it is handed back.
+         */
+        private boolean busy;
+        private boolean finished;
+    }
+
+    /**
+     * The time and number of commands one thread has spent on stored commands in the current tick.
+     * Only ever touched by its own thread.
+     */
+    private static class TickBudget {
+        private long windowStart = System.nanoTime() - TICK_NANOS;
+        private long spentNanos;
+        private int commands;
+
+        boolean hasRoom(long budgetNanos, int maxCommands) {
+            long now = System.nanoTime();
+            if (now - windowStart >= TICK_NANOS) {
+                windowStart = now;
+                spentNanos = 0;
+                commands = 0;
+            }
+            return spentNanos < budgetNanos && commands < maxCommands;
+        }
+
+        void charge(long nanos) {
+            spentNanos += nanos;
+            commands++;
+        }
+    }
+
+    /**
+     * Receives the commands of one player's queue as they leave it. Called on the thread that ran the command
+     * or dropped it, which may be the global region, the player's region or a thread disabling the plugin,
+     * and never while the scheduler's lock is held.
+     */
+    public interface QueueListener {
+
+        /**
+         * @param command a non-recurring command that has been handled
+         */
+        void onConsumed(CommandStorage command);
+
+        /**
+         * @param commands the commands dropped from the queue without being dispatched
+         */
+        void onReleased(List<CommandStorage> commands);
+
+        /**
+         * Called once nothing is left in the queue. Commands dispatched last may still be running.
+         */
+        void onFinished();
+    }
+
+    private static class QueuedCommand {
+        private final CommandStorage command;
+        private final long queuedAt;
+
+        QueuedCommand(CommandStorage command, long queuedAt) {
+            this.command = command;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
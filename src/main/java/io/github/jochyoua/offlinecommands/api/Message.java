@@ -0,0 +1,82 @@
+package io.github.jochyoua.offlinecommands.api;
+
+/**
+ * Every message the plugin sends, keyed by its path below the {@code variables} config section.
+ * Each message carries the text that is used when the config does not define it.
+ */
+public enum Message {
+    ONLY_CONSOLE("only-console", "&cSorry, only console may execute this command."),
+    CURRENTLY_ONLINE("currently-online", "&7That user is currently online, executing now."),
+    RELOAD_SUCCESSFUL("reload-successful", "&7Successfully reloaded config!"),
+    INCORRECT_SYNTAX("incorrect-syntax", "&cYou have provided incorrect syntax.\n&7/offlinecommands help"),
+    PLAYER_FAILED_TO_UPDATE("player-failed-to-update", "&cFailed to update the user.\n&cPlease check the console for more details."),
+    PLAYER_DOES_NOT_EXIST("player-does-not-exist", "&cThe user &e%1$s&c has no stored commands."),
+    NEW_COMMAND_ADDED("new-command-added", "&7New command has successfully been added.\n&7  |&m--&r &8User&7: %1$s\n&7  |&m--&r &8[Identifier]&7: %2$s"),
+    IDENTIFIER_SEARCH("identifier-search", "&7Removing identifier &3%1$s&7 for uuid &e%2$s"),
+    IDENTIFIER_NOT_FOUND("identifier-not-found", "&cIdentifier does not exist."),
+    IDENTIFIER_FOUND("identifier-found", "&3Identifier has been removed."),
+    NO_USERS_FOUND("no-users-found", "&cThere are no existing users under these search parameters."),
+    LIST_COMMAND_HEADER("list-command-header", "&7OfflineCommands's List Page&7:"),
+    LIST_COMMAND_INFO_HEADER("list-commandInfo-header", "&7OfflineCommands's Command Information&7:"),
+    LIST_USER_UUID("list-user-uuid", "&7  |&m--&r &8[&e%1$s&8]"),
+    LIST_NO_COMMANDS_FOUND("list-no-commands-found", "&7  |&m--&r &3&oThis user has no commands to execute."),
+    LIST_COMMAND_FORMAT("list-command-format", "&7  |&m--&r &8[%1$s]&7: %2$s"),
+    LIST_COMMAND_FOOTER("list-command-footer", "&7Page &8(&3%1$d/%2$d&8) &3> &7/offlinecommands list &3%3$d"),
+    LIST_COMMAND_FOOTER_END_OF_LIST("list-command-footer-end-of-list", "&7Page &8(&3%1$d/%2$d&8) &3> &7End of list!"),
+    LIST_INVALID_PAGE_NUMBER("list-invalid-page-number", "&cThe page number %1$d is invalid. Please enter a number between 1 and %2$d."),
+    MIGRATION_STARTED("migration-started", "&7Copying every stored command into the &3%1$s&7 database..."),
+    MIGRATION_FINISHED("migration-finished", "&7Copied &3%1$d&7 users into the &3%2$s&7 database. Set &3database-backend&7 to &3%2$s&7 and reload to use it."),
+    MIGRATION_FAILED("migration-failed", "&cFailed to copy the stored commands.\n&cPlease check the console for more details."),
+    MIGRATION_SAME_BACKEND("migration-same-backend", "&cThe &e%1$s&c database is already in use."),
+    STATS_FORMAT("stats-format", "&7OfflineCommands's Statistics&7:\n"
+            + "&7  |&m--&r &8Pending commands&7: %1$d\n"
+            + "&7  |&m--&r &8Users&7: %2$d\n"
+            + "&7  |&m--&r &8Console / Player&7: %3$d / %4$d\n"
+            + "&7  |&m--&r &8Recurring&7: %5$d\n"
+            + "&7  |&m--&r &8Queued for dispatch&7: %6$d (%7$d players)\n"
+            + "&7  |&m--&r &8Dispatch wait&7: %8$dms average, %9$dms max\n"
+            + "&7  |&m--&r &8User cache&7: %10$d users, %11$d%% hits, %12$d evictions"),
+    HELP_COMMAND_FORMAT("help-command-format", "&7&m----&r &eOfflineCommands Help Page&7 &m----\n"
+            + "&7CHEATSHEET:\n"
+            + " - &7<&6arg&7> &f= &7required argument\n"
+            + " - &7(&6arg&7) &f= &7optional argument\n"
+            + " - &6no-feedback &f= &7no response\n"
+            + "&7Commands:\n"
+            + " - &8[&eofflinecommands list&8]&7:\n"
+            + "   &fList all current users and their commands\n"
+            + " - &8[&eofflinecommands info <identifier>&8]&7:\n"
+            + "   &fShow information about a specific command\n"
+            + " - &8[&eofflinecommands stats&8]&7:\n"
+            + "   &fShow how many commands are waiting\n"
+            + " - &8[&eofflinecommands add &8<&6user=\"username/UUID\"&8> &8<&6command=\"command\"&8> &8(&6executor=\"CONSOLE/PLAYER\"&8) &8(&6permission=\"permission\"&8) &8(&6sound=\"BLOCK_NOTE_BLOCK_CHIME\"&8)]&7:\n"
+            + "   &fAdd a command for a user\n"
+            + " - &8[&eofflinecommands remove &8<&6username/UUID&8> &8<&6identifier&8>]&7:\n"
+            + "   &fRemove a command from the config\n"
+            + " - &8[&eofflinecommands reload&8]&7:\n"
+            + "   &fReload the config.yml file into memory\n"
+            + " - &8[&eofflinecommands migrate &8<&6sqlite/h2&8>]&7:\n"
+            + "   &fCopy every stored command into another database backend\n"
+            + "&7&m---------------------------------");
+
+    private final String path;
+    private final String defaultValue;
+
+    Message(String path, String defaultValue) {
+        this.path = path;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * @return the path of the message below the {@code variables} section
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the text used when the config does not define the message
+     */
+    public String getDefaultValue() {
+        return defaultValue;
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.jochyoua.offlinecommands.api;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Map;
+
+import static io.github.jochyoua.offlinecommands.OfflineCommandsUtils.applyChatColors;
+
+/**
+ * All plugin messages, color-translated and parsed into templates once when the config is loaded.
+ * <p>
+ * A template is a list of literal segments and argument slots taken from the message's {@code %s}, {@code %d},
+ * {@code %1$s} and {@code %1$d} specifiers, so rendering a message is a lookup plus appending its arguments.
+ * Messages using any other format specifier are kept as they are and rendered with {@link String#format}.
+ * A message that is missing from the config falls back to its {@link Message#getDefaultValue() default}.
+ * </p>
+ */
+public class MessageCatalog {
+    private final Map<Message, Template> templates = new EnumMap<>(Message.class);
+
+    /**
+     * Builds the catalog from the given section.
+     *
+     * @param variables the {@code variables} config section, or null to use only the defaults
+     */
+    public MessageCatalog(ConfigurationSection variables) {
+        for (Message message : Message.values()) {
+            String value = variables == null ? null : variables.getString(message.getPath());
+            templates.put(message, Template.parse(applyChatColors(value != null ? value : message.getDefaultValue())));
+        }
+    }
+
+    /**
+     * Renders a message with the given arguments.
+     *
+     * @param message the message to render
+     * @param args    the arguments referenced by the message
+     * @return the color-translated message
+     */
+    public String get(Message message, Object... args) {
+        return templates.get(message).render(args);
+    }
+
+    private static class Template {
+        private final String format;
+        private final String[] literals;
+        private final int[] slots;
+        private final String[] specifiers;
+
+        private Template(String format, String[] literals, int[] slots, String[] specifiers) {
+            this.format = format;
+            this.literals = literals;
+            this.slots = slots;
+            this.specifiers = specifiers;
+        }
+
+        static Template parse(String format) {
+            List<String> literals = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            List<String> specifiers = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int nextArgument = 0;
+
+            int i = 0;
+            while (i < format.length()) {
+                char c = format.charAt(i);
+                if (c != '%') {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+
+                int end = i + 1;
+                while (end < format.length() && Character.isDigit(format.charAt(end))) {
+                    end++;
+                }
+                boolean indexed = end > i + 1 && end < format.length() && format.charAt(end) == '$';
+                int conversionAt = indexed ? end + 1 : i + 1;
+                if (conversionAt >= format.length() || (!indexed && end > i + 1)) {
+                    return new Template(format, null, null, null);
+                }
+
+                char conversion = format.charAt(conversionAt);
+                if (!indexed && conversion == '%') {
+                    literal.append('%');
+                } else if (!indexed && conversion == 'n') {
+                    literal.append(System.lineSeparator());
+                } else if (conversion == 's' || conversion == 'd') {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    slots.add(indexed ? Integer.parseInt(format.substring(i + 1, end)) - 1 : nextArgument++);
+                    specifiers.add(format.substring(i, conversionAt + 1));
+                } else {
+                    return new Template(format, null, null, null);
+                }
+                i = conversionAt + 1;
+            }
+            literals.add(literal.toString());
+
+            int[] slotArray = new int[slots.size()];
+            for (int slot = 0; slot < slotArray.length; slot++) {
+                slotArray[slot] = slots.get(slot);
+            }
+            return new Template(format, literals.toArray(new String[0]), slotArray, specifiers.toArray(new String[0]));
+        }
+
+        String render(Object... args) {
+            if (literals == null) {
+                try {
+                    return String.format(format, args);
+                } catch (IllegalFormatException ignored) {
+                    return format;
+                }
+            }
+            if (slots.length == 0) {
+                return literals[0];
+            }
+
+            StringBuilder builder = new StringBuilder(format.length() + slots.length * 16);
+            builder.append(literals[0]);
+            for (int slot = 0; slot < slots.length; slot++) {
+                int argument = slots[slot];
+                builder.append(argument >= 0 && argument < args.length ? String.valueOf(args[argument]) : specifiers[slot]);
+                builder.append(literals[slot + 1]);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -1,15 +1,44 @@
 package io.github.jochyoua.offlinecommands.api;
 
-import io.github.jochyoua.offlinecommands.storage.UserStorage;
+import lombok.Getter;
 
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Handles pagination logic for lists of data.
+ * Handles pagination logic for keyset (seek) paginated data.
+ * <p>
+ * Items are expected to be ordered by a unique string key. Instead of skipping over earlier items,
+ * each page is fetched as "the next {@code pageSize} items after key X". The key that ends a page is
+ * remembered as the cursor of the following page, so walking through the pages costs the same for
+ * every page.
+ * </p>
+ * <p>
+ * A cursor only marks where a page started when it was loaded. Once items are added or removed, earlier
+ * pages hold different items and a remembered cursor would skip or repeat some of them, so every cursor is
+ * dropped whenever the items, the number of items or the page size change. A page without a remembered
+ * cursor is found by seeking from the closest remembered page before it, which costs as much as skipping
+ * the pages in between.
+ * </p>
  */
 public class Pagination {
-    private final int totalItems;
-    private final int pageSize;
+    /**
+     * The cursor of the first page; every key sorts after it.
+     */
+    public static final String FIRST_CURSOR = "";
+    private static final int MAX_CACHED_CURSORS = 256;
+
+    private final Map<Integer, String> cursors = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > MAX_CACHED_CURSORS;
+        }
+    };
+    private int totalItems;
+    private int pageSize;
+    private long itemsVersion;
 
     /**
      * Constructs a new Pagination object with the specified total items and page size.
@@ -22,13 +51,29 @@ public class Pagination {
         this.pageSize = pageSize;
     }
 
+    /**
+     * Updates the total items and page size, forgetting all cursors if any of them changed.
+     *
+     * @param totalItems   the total number of items
+     * @param pageSize     the number of items per page
+     * @param itemsVersion a number that changes whenever an item is added or removed
+     */
+    public synchronized void update(int totalItems, int pageSize, long itemsVersion) {
+        if (this.totalItems != totalItems || this.pageSize != pageSize || this.itemsVersion != itemsVersion) {
+            cursors.clear();
+        }
+        this.totalItems = totalItems;
+        this.pageSize = pageSize;
+        this.itemsVersion = itemsVersion;
+    }
+
     /**
      * Checks if the given page number is within the valid range.
      *
      * @param page the page number to check
      * @return true if the page number is valid, false otherwise
      */
-    public boolean isValidPage(int page) {
+    public synchronized boolean isValidPage(int page) {
         return page >= 1 && page <= getTotalPages();
     }
 
@@ -37,7 +82,7 @@ public class Pagination {
      *
      * @return the total number of pages
      */
-    public int getTotalPages() {
+    public synchronized int getTotalPages() {
         return (int) Math.ceil((double) totalItems / pageSize);
     }
 
@@ -47,21 +92,89 @@ public class Pagination {
      * @param currentPage the current page number
      * @return the next page number if there is one, otherwise the current page
      */
-    public int getNextPage(int currentPage) {
+    public synchronized int getNextPage(int currentPage) {
         int totalPages = getTotalPages();
         return (currentPage < totalPages) ? currentPage + 1 : totalPages;
     }
 
     /**
-     * Retrieves a sublist of items for the specified page.
+     * Returns the number of items per page.
+     *
+     * @return the page size
+     */
+    public synchronized int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the key after which the given page starts, if it is known.
      *
-     * @param list the full list of items
      * @param page the page number
-     * @return the sublist of items for the specified page
+     * @return the cursor of the page, {@link #FIRST_CURSOR} for the first page, or null if it has to be looked up
      */
-    public List<UserStorage> getSubList(List<UserStorage> list, int page) {
-        int fromIndex = (page - 1) * pageSize;
-        int toIndex = Math.min(fromIndex + pageSize, list.size());
-        return list.subList(fromIndex, toIndex);
+    public synchronized String getCursor(int page) {
+        return page == 1 ? FIRST_CURSOR : cursors.get(page);
+    }
+
+    /**
+     * Finds the closest page at or before the given one whose cursor is known, to seek from.
+     *
+     * @param page the page number
+     * @return the page number and its cursor; the first page if no later one is known
+     */
+    public synchronized Map.Entry<Integer, String> getNearestCursor(int page) {
+        int nearest = 1;
+        String cursor = FIRST_CURSOR;
+        for (Map.Entry<Integer, String> entry : cursors.entrySet()) {
+            if (entry.getKey() <= page && entry.getKey() > nearest) {
+                nearest = entry.getKey();
+                cursor = entry.getValue();
+            }
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(nearest, cursor);
+    }
+
+    /**
+     * Remembers the key after which the given page starts.
+     *
+     * @param page   the page number
+     * @param cursor the key of the last item on the previous page
+     */
+    public synchronized void setCursor(int page, String cursor) {
+        cursors.put(page, cursor);
+    }
+
+    /**
+     * Captures the state of a single page so it can be rendered without further locking.
+     *
+     * @param page  the page number
+     * @param items the items on the page, empty if the page is invalid
+     * @param <T>   the type of the items
+     * @return the page
+     */
+    public synchronized <T> Page<T> toPage(int page, List<T> items) {
+        return new Page<>(page, getTotalPages(), getNextPage(page), isValidPage(page), items);
+    }
+
+    /**
+     * A single loaded page.
+     *
+     * @param <T> the type of the items
+     */
+    @Getter
+    public static class Page<T> {
+        private final int page;
+        private final int totalPages;
+        private final int nextPage;
+        private final boolean valid;
+        private final List<T> items;
+
+        private Page(int page, int totalPages, int nextPage, boolean valid, List<T> items) {
+            this.page = page;
+            this.totalPages = totalPages;
+            this.nextPage = nextPage;
+            this.valid = valid;
+            this.items = items;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,126 @@
+package io.github.jochyoua.offlinecommands.api;
+
+import me.clip.placeholderapi.PlaceholderAPI;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A command or message string parsed once into literal text and placeholder slots.
+ * <p>
+ * Templates are cached per distinct string, with the least recently used ones evicted once
+ * {@value #MAX_CACHED_TEMPLATES} are held, so a string is only parsed the first time it is seen.
+ * Rendering fills the {@code {playername}} slots in a single pass and only hands the result to
+ * PlaceholderAPI if the string could contain one of its placeholders and PlaceholderAPI is enabled.
+ * Whether it is enabled is resolved once and updated from plugin enable and disable events.
+ * </p>
+ */
+public final class PlaceholderTemplate {
+    private static final String PLAYER_NAME = "{playername}";
+    private static final int MAX_CACHED_TEMPLATES = 512;
+    private static final Map<String, PlaceholderTemplate> TEMPLATES = Collections.synchronizedMap(
+            new LinkedHashMap<String, PlaceholderTemplate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PlaceholderTemplate> eldest) {
+                    return size() > MAX_CACHED_TEMPLATES;
+                }
+            });
+    private static volatile boolean placeholderApiEnabled;
+
+    private final String[] literals;
+    private final int literalLength;
+    private final boolean placeholderApiCandidate;
+
+    private PlaceholderTemplate(String string) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = indexOfPlayerName(string, 0); i >= 0; i = indexOfPlayerName(string, start)) {
+            parts.add(string.substring(start, i));
+            start = i + PLAYER_NAME.length();
+        }
+        parts.add(string.substring(start));
+        this.literals = parts.toArray(new String[0]);
+        this.literalLength = string.length() - (literals.length - 1) * PLAYER_NAME.length();
+        this.placeholderApiCandidate = string.indexOf('%') >= 0;
+    }
+
+    /**
+     * Returns the template for the given string, parsing it if it is not cached.
+     *
+     * @param string the string to parse
+     * @return the template
+     */
+    public static PlaceholderTemplate of(String string) {
+        PlaceholderTemplate template = TEMPLATES.get(string);
+        if (template == null) {
+            template = new PlaceholderTemplate(string);
+            TEMPLATES.put(string, template);
+        }
+        return template;
+    }
+
+    /**
+     * Fills the template with values from the given player.
+     *
+     * @param player the player to get values from
+     * @return the rendered string
+     */
+    public String render(Player player) {
+        String rendered;
+        if (literals.length == 1) {
+            rendered = literals[0];
+        } else {
+            String name = player.getName();
+            StringBuilder builder = new StringBuilder(literalLength + (literals.length - 1) * name.length());
+            builder.append(literals[0]);
+            for (int i = 1; i < literals.length; i++) {
+                builder.append(name).append(literals[i]);
+            }
+            rendered = builder.toString();
+        }
+
+        if (placeholderApiCandidate && placeholderApiEnabled) {
+            return PlaceholderAPI.setPlaceholders(player, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Looks up whether PlaceholderAPI is installed and enabled.
+     */
+    public static void refreshPlaceholderApi() {
+        Plugin placeholderAPI = Bukkit.getPluginManager().getPlugin("PlaceholderAPI");
+        setPlaceholderApiEnabled(placeholderAPI != null && placeholderAPI.isEnabled());
+    }
+
+    /**
+     * Sets whether placeholders are passed on to PlaceholderAPI.
+     *
+     * @param enabled true if PlaceholderAPI is enabled
+     */
+    public static void setPlaceholderApiEnabled(boolean enabled) {
+        placeholderApiEnabled = enabled;
+    }
+
+    /**
+     * Drops every cached template.
+     */
+    public static void clearCache() {
+        TEMPLATES.clear();
+    }
+
+    private static int indexOfPlayerName(String string, int from) {
+        for (int i = string.indexOf('{', from); i >= 0; i = string.indexOf('{', i + 1)) {
+            if (string.regionMatches(true, i, PLAYER_NAME, 0, PLAYER_NAME.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
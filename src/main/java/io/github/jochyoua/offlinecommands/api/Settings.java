@@ -0,0 +1,183 @@
+package io.github.jochyoua.offlinecommands.api;
+
+import lombok.Getter;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An immutable, validated snapshot of the {@code settings} config section.
+ * <p>
+ * A snapshot is built whenever the config is loaded and published as a whole, so readers never see a mix
+ * of old and new values and never touch the YAML tree on a hot path. Values that are out of range are
+ * rejected when the snapshot is built rather than failing later wherever they are used.
+ * </p>
+ */
+@Getter
+public final class Settings {
+    private static final List<String> SYNCHRONOUS_MODES = Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA");
+    private static final List<String> CLAIM_RECOVERY_POLICIES = Arrays.asList("DISCARD", "RETRY");
+    private static final List<String> DATABASE_BACKENDS = Arrays.asList("SQLITE", "H2");
+
+    private final boolean executeIfOnline;
+    private final boolean onlyAllowConsoleToAddCommands;
+    private final int delayExecuteAfterJoinTicks;
+    private final int pageSize;
+    private final boolean debugToFile;
+    private final int debugMaxFileSizeKb;
+    private final int debugRetentionDays;
+    private final int debugBufferSize;
+    private final boolean debugCaptureCaller;
+    private final long prefetchExpireMillis;
+    private final long dispatchBudgetMillis;
+    private final int dispatchMaxCommandsPerTick;
+    private final String claimRecoveryPolicy;
+    private final boolean sharedDatabase;
+    private final String serverId;
+    private final int leaseDurationSeconds;
+    private final int tabCompleteMaxEntries;
+    private final int userCacheMaxEntries;
+    private final int writeBehindBatchSize;
+    private final long writeBehindFlushIntervalMillis;
+    private final int writeBehindMaxPending;
+    private final String databaseBackend;
+    private final String databaseFile;
+    private final String databaseSynchronous;
+    private final int databaseCacheSize;
+    private final long databaseMmapSize;
+    private final int databaseBusyTimeoutMillis;
+    private final long databaseCheckpointIntervalSeconds;
+    private final int databaseReadConnections;
+    private final int databaseCompressThresholdBytes;
+    private final boolean databaseParallelDecode;
+
+    private Settings(Reader reader) {
+        this.executeIfOnline = reader.section.getBoolean("execute-if-online", true);
+        this.onlyAllowConsoleToAddCommands = reader.section.getBoolean("only-allow-console-to-add-commands", true);
+        this.delayExecuteAfterJoinTicks = reader.intAtLeast("delay-execute-after-join-ticks", 20, 0);
+        this.pageSize = reader.intAtLeast("page-size", 2, 1);
+        this.debugToFile = reader.section.getBoolean("debug-to-file", reader.section.getBoolean("log-to-file", true));
+        this.debugMaxFileSizeKb = reader.intAtLeast("debug-max-file-size-kb", 1024, 1);
+        this.debugRetentionDays = reader.intAtLeast("debug-retention-days", 1, 1);
+        this.debugBufferSize = reader.intAtLeast("debug-buffer-size", 8192, 16);
+        this.debugCaptureCaller = reader.section.getBoolean("debug-capture-caller", false);
+        this.prefetchExpireMillis = reader.longAtLeast("prefetch-expire-seconds", 30L, 0L) * 1000L;
+        this.dispatchBudgetMillis = reader.longAtLeast("dispatch-budget-millis", 5L, 1L);
+        this.dispatchMaxCommandsPerTick = reader.intAtLeast("dispatch-max-commands-per-tick", 20, 1);
+        this.claimRecoveryPolicy = reader.oneOf("claim-recovery-policy", "DISCARD", CLAIM_RECOVERY_POLICIES);
+        this.sharedDatabase = reader.section.getBoolean("shared-database", false);
+        this.serverId = reader.section.getString("server-id", "");
+        this.leaseDurationSeconds = reader.intAtLeast("lease-duration-seconds", 30, 5);
+        this.tabCompleteMaxEntries = reader.intAtLeast("tab-complete-max-entries", 10000, 0);
+        this.userCacheMaxEntries = reader.intAtLeast("user-cache-max-entries", 1000, 0);
+        this.writeBehindBatchSize = reader.intAtLeast("write-behind-batch-size", 256, 1);
+        this.writeBehindFlushIntervalMillis = reader.longAtLeast("write-behind-flush-interval-millis", 1000L, 50L);
+        this.writeBehindMaxPending = reader.intAtLeast("write-behind-max-pending", 4096, writeBehindBatchSize);
+        this.databaseBackend = reader.oneOf("database-backend", "SQLITE", DATABASE_BACKENDS);
+        this.databaseFile = reader.section.getString("database-file", "user_database.db");
+        this.databaseSynchronous = reader.oneOf("database-synchronous", "NORMAL", SYNCHRONOUS_MODES);
+        this.databaseCacheSize = reader.section.getInt("database-cache-size", -8000);
+        this.databaseMmapSize = reader.longAtLeast("database-mmap-size", 67108864L, 0L);
+        this.databaseBusyTimeoutMillis = reader.intAtLeast("database-busy-timeout-millis", 5000, 0);
+        this.databaseCheckpointIntervalSeconds = reader.longAtLeast("database-checkpoint-interval-seconds", 300L, 0L);
+        this.databaseReadConnections = reader.intAtLeast("database-read-connections", 2, 0);
+        this.databaseCompressThresholdBytes = reader.intAtLeast("database-compress-threshold-bytes", 512, 0);
+        this.databaseParallelDecode = reader.section.getBoolean("database-parallel-decode", false);
+    }
+
+    /**
+     * Builds a snapshot from the given section.
+     *
+     * @param section the {@code settings} config section, or null to use the defaults
+     * @return the validated settings
+     * @throws IllegalArgumentException listing every invalid value if any value is out of range
+     */
+    public static Settings load(ConfigurationSection section) {
+        Reader reader = new Reader(section != null ? section : new MemoryConfiguration());
+        Settings settings = new Settings(reader);
+        if (!reader.errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid settings: " + String.join("; ", reader.errors));
+        }
+        return settings;
+    }
+
+    /**
+     * @return a snapshot holding only the default values
+     */
+    public static Settings defaults() {
+        return load(null);
+    }
+
+    /**
+     * Lists the settings that differ from the previous snapshot but are only read when the plugin enables:
+     * they size threads, caches and the debug log, or decide whether and as whom leases are taken.
+     * Every other setting is read again on each use, or by the storage reopened on reload.
+     *
+     * @param previous the snapshot in use so far
+     * @return the paths of the changed settings that need a restart
+     */
+    public List<String> getRestartRequiredChanges(Settings previous) {
+        List<String> changed = new ArrayList<>();
+        addIfChanged(changed, "shared-database", sharedDatabase, previous.sharedDatabase);
+        addIfChanged(changed, "server-id", serverId, previous.serverId);
+        addIfChanged(changed, "prefetch-expire-seconds", prefetchExpireMillis, previous.prefetchExpireMillis);
+        addIfChanged(changed, "debug-to-file", debugToFile, previous.debugToFile);
+        addIfChanged(changed, "debug-max-file-size-kb", debugMaxFileSizeKb, previous.debugMaxFileSizeKb);
+        addIfChanged(changed, "debug-retention-days", debugRetentionDays, previous.debugRetentionDays);
+        addIfChanged(changed, "debug-buffer-size", debugBufferSize, previous.debugBufferSize);
+        addIfChanged(changed, "debug-capture-caller", debugCaptureCaller, previous.debugCaptureCaller);
+        addIfChanged(changed, "database-read-connections", databaseReadConnections, previous.databaseReadConnections);
+        addIfChanged(changed, "tab-complete-max-entries", tabCompleteMaxEntries, previous.tabCompleteMaxEntries);
+        addIfChanged(changed, "user-cache-max-entries", userCacheMaxEntries, previous.userCacheMaxEntries);
+        return changed;
+    }
+
+    private static void addIfChanged(List<String> changed, String path, Object value, Object previous) {
+        if (!value.equals(previous)) {
+            changed.add(path);
+        }
+    }
+
+    /**
+     * Reads values from a section and records every one that is out of range.
+     */
+    private static class Reader {
+        private final ConfigurationSection section;
+        private final List<String> errors = new ArrayList<>();
+
+        Reader(ConfigurationSection section) {
+            this.section = section;
+        }
+
+        int intAtLeast(String path, int def, int min) {
+            int value = section.getInt(path, def);
+            if (value < min) {
+                errors.add(String.format("%s is %d but must be at least %d", path, value, min));
+                return def;
+            }
+            return value;
+        }
+
+        long longAtLeast(String path, long def, long min) {
+            long value = section.getLong(path, def);
+            if (value < min) {
+                errors.add(String.format("%s is %d but must be at least %d", path, value, min));
+                return def;
+            }
+            return value;
+        }
+
+        String oneOf(String path, String def, List<String> allowed) {
+            String value = section.getString(path, def).toUpperCase(Locale.ROOT);
+            if (!allowed.contains(value)) {
+                errors.add(String.format("%s is '%s' but must be one of %s", path, value, allowed));
+                return def;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.github.jochyoua.offlinecommands.commands;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.github.jochyoua.offlinecommands.storage.CommandStorage;
+import io.github.jochyoua.offlinecommands.storage.StorageListener;
+import io.github.jochyoua.offlinecommands.storage.StorageManager;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the usernames and command identifiers offered by tab completion in memory.
+ * <p>
+ * The index is built once from the database whenever it is (re)loaded and is afterwards kept up to date
+ * from committed adds, removals and consumed commands, so completing a word never touches the database.
+ * Keys are stored lower-cased in sorted maps, which turns a prefix match into a range lookup that only
+ * visits the matching entries. At most {@code maxEntries} usernames and identifiers are indexed; entries
+ * beyond that are simply not offered.
+ * </p>
+ * <p>
+ * Changes committed while the index is being rebuilt are applied to the current index and also recorded,
+ * then replayed in order onto the rebuilt one before it replaces the current one, so none of them are lost.
+ * </p>
+ */
+public class CompletionIndex implements StorageListener {
+    private final int maxEntries;
+    private volatile State state = new State();
+    private List<Consumer<State>> changesWhileLoading;
+
+    public CompletionIndex(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+    }
+
+    @Override
+    public void onDatabaseLoaded(StorageManager storage) throws SQLException, JsonProcessingException {
+        State rebuilt = new State();
+        synchronized (this) {
+            changesWhileLoading = new ArrayList<>();
+        }
+        try {
+            storage.forEachCommandKey((uuid, username, identifier) -> rebuilt.add(uuid, username, identifier, maxEntries));
+            synchronized (this) {
+                for (Consumer<State> change : changesWhileLoading) {
+                    change.accept(rebuilt);
+                }
+                state = rebuilt;
+            }
+        } finally {
+            synchronized (this) {
+                changesWhileLoading = null;
+            }
+        }
+    }
+
+    @Override
+    public void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+        apply(current -> {
+            for (CommandStorage command : commands) {
+                current.add(uuid, username, command.getIdentifier(), maxEntries);
+            }
+        });
+    }
+
+    @Override
+    public void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+        apply(current -> {
+            if (userRemoved) {
+                current.removeUser(uuid);
+                return;
+            }
+            for (CommandStorage command : commands) {
+                current.removeIdentifier(uuid, command.getIdentifier());
+            }
+        });
+    }
+
+    private synchronized void apply(Consumer<State> change) {
+        change.accept(state);
+        if (changesWhileLoading != null) {
+            changesWhileLoading.add(change);
+        }
+    }
+
+    /**
+     * Returns the names of users with stored commands that start with the given prefix, ignoring case.
+     * Users without a known name are offered by UUID.
+     *
+     * @param prefix the text typed so far
+     * @param limit  the maximum number of results
+     * @return the matching names in alphabetical order
+     */
+    public List<String> completeUsernames(String prefix, int limit) {
+        State current = state;
+        List<String> result = new ArrayList<>();
+        for (UUID uuid : prefixRange(current.usernames, prefix).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            String name = current.displayNames.get(uuid);
+            if (name != null) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored command identifiers that start with the given prefix, ignoring case.
+     *
+     * @param prefix the text typed so far
+     * @param limit  the maximum number of results
+     * @return the matching identifiers in alphabetical order
+     */
+    public List<String> completeIdentifiers(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        for (String identifier : prefixRange(state.identifiers, prefix).keySet()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(identifier);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the identifiers stored for one user that start with the given prefix, ignoring case.
+     *
+     * @param uuid   the UUID of the user
+     * @param prefix the text typed so far
+     * @return the matching identifiers in alphabetical order, empty if the user is unknown
+     */
+    public List<String> completeIdentifiers(UUID uuid, String prefix) {
+        Set<String> owned = state.identifiersByOwner.get(uuid);
+        if (owned == null) {
+            return Collections.emptyList();
+        }
+        String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+        List<String> result = new ArrayList<>();
+        for (String identifier : owned) {
+            if (identifier.startsWith(lowerPrefix)) {
+                result.add(identifier);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Looks up the UUID of an indexed user by name, ignoring case.
+     *
+     * @param username the name of the user
+     * @return the UUID, or null if no user with that name has stored commands
+     */
+    public UUID getUniqueId(String username) {
+        return state.usernames.get(username.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the number of usernames and identifiers currently indexed.
+     *
+     * @return the size of the index
+     */
+    public int size() {
+        return state.size.get();
+    }
+
+    private static <V> NavigableMap<String, V> prefixRange(NavigableMap<String, V> map, String prefix) {
+        String from = prefix.toLowerCase(Locale.ROOT);
+        return map.subMap(from, true, from + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * One generation of the index. Replaced as a whole when the database is reloaded.
+     */
+    private static class State {
+        private final ConcurrentSkipListMap<String, UUID> usernames = new ConcurrentSkipListMap<>();
+        private final Map<UUID, String> displayNames = new ConcurrentHashMap<>();
+        private final ConcurrentSkipListMap<String, UUID> identifiers = new ConcurrentSkipListMap<>();
+        private final Map<UUID, Set<String>> identifiersByOwner = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        void add(UUID uuid, String username, String identifier, int maxEntries) {
+            String name = username != null ? username : uuid.toString();
+            String previousName = displayNames.get(uuid);
+            if (!name.equals(previousName)) {
+                if (previousName != null) {
+                    displayNames.remove(uuid);
+                    removeName(uuid, previousName);
+                }
+                if (size.get() < maxEntries) {
+                    displayNames.put(uuid, name);
+                    if (usernames.put(name.toLowerCase(Locale.ROOT), uuid) == null) {
+                        size.incrementAndGet();
+                    }
+                }
+            }
+
+            String key = identifier.toLowerCase(Locale.ROOT);
+            if (!displayNames.containsKey(uuid) || (!identifiers.containsKey(key) && size.get() >= maxEntries)) {
+                return;
+            }
+            if (identifiers.put(key, uuid) == null) {
+                size.incrementAndGet();
+            }
+            identifiersByOwner.computeIfAbsent(uuid, ignored -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+
+        void removeIdentifier(UUID uuid, String identifier) {
+            String key = identifier.toLowerCase(Locale.ROOT);
+            if (identifiers.remove(key, uuid)) {
+                size.decrementAndGet();
+            }
+            Set<String> owned = identifiersByOwner.get(uuid);
+            if (owned != null) {
+                owned.remove(key);
+            }
+        }
+
+        void removeUser(UUID uuid) {
+            Set<String> owned = identifiersByOwner.remove(uuid);
+            if (owned != null) {
+                for (String key : owned) {
+                    if (identifiers.remove(key, uuid)) {
+                        size.decrementAndGet();
+                    }
+                }
+            }
+            String name = displayNames.remove(uuid);
+            if (name != null) {
+                removeName(uuid, name);
+            }
+        }
+
+        private void removeName(UUID uuid, String name) {
+            if (usernames.remove(name.toLowerCase(Locale.ROOT), uuid)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,34 +1,32 @@
 package io.github.jochyoua.offlinecommands.commands;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import io.github.jochyoua.offlinecommands.OfflineCommands;
 import io.github.jochyoua.offlinecommands.OfflineCommandsUtils;
+import io.github.jochyoua.offlinecommands.api.Message;
 import io.github.jochyoua.offlinecommands.commands.subcommands.InfoCommands;
 import io.github.jochyoua.offlinecommands.commands.subcommands.ModifyCommands;
-import io.github.jochyoua.offlinecommands.storage.CommandStorage;
-import io.github.jochyoua.offlinecommands.storage.UserStorage;
+import io.github.jochyoua.offlinecommands.storage.StorageBackend;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.util.StringUtil;
 
-import java.sql.SQLException;
 import java.util.*;
-import java.util.logging.Level;
-import java.util.stream.Collectors;
-
-import static io.github.jochyoua.offlinecommands.OfflineCommandsUtils.applyChatColors;
-import static io.github.jochyoua.offlinecommands.VariableConstants.VARIABLES_PATH;
 
 public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
-    private static final List<String> BASE_ARGS = Arrays.asList("help", "list", "add", "remove", "info", "reload", "no-feedback");
+    private static final List<String> BASE_ARGS = Arrays.asList("help", "list", "add", "remove", "info", "stats", "reload", "migrate", "no-feedback");
     private static final List<String> ADD_ARGS = Arrays.asList("user=\"\"", "command=\"\"", "executor=\"\"", "permission=\"\"", "message=\"\"", "recurring=\"\"");
+    private static final int MAX_COMPLETIONS = 100;
 
     private final OfflineCommands offlineCommands;
+    private final InfoCommands infoCommands;
+    private final ModifyCommands modifyCommands;
 
     public OfflineCommandExecutor(OfflineCommands plugin) {
         this.offlineCommands = plugin;
+        this.infoCommands = new InfoCommands(plugin);
+        this.modifyCommands = new ModifyCommands(plugin);
     }
 
     @Override
@@ -37,9 +35,6 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
             return showHelpCommandToSender(sender, true);
         }
 
-        InfoCommands infoCommands = new InfoCommands(offlineCommands);
-        ModifyCommands modifyCommands = new ModifyCommands(offlineCommands);
-
         boolean feedback = !(String.join(" ", args).contains("no-feedback"));
         switch (args[0].toLowerCase(Locale.ROOT)) {
             case "list":
@@ -47,12 +42,16 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
                 return infoCommands.showListOfCommands(sender, feedback, page);
             case "info":
                 return args.length == 2 && infoCommands.showFullCommandInfo(sender, feedback, args[1]);
+            case "stats":
+                return infoCommands.showStatistics(sender, feedback);
             case "add":
                 return modifyCommands.addCommandToDatabase(sender, feedback, args);
             case "remove":
                 return modifyCommands.removeCommandfromDatabase(sender, feedback, args);
             case "reload":
                 return reloadCommand(sender, feedback);
+            case "migrate":
+                return modifyCommands.migrateDatabase(sender, feedback, args);
             case "help":
             default:
                 return showHelpCommandToSender(sender, feedback);
@@ -84,7 +83,7 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
      * @return always returns true
      */
     private boolean showHelpCommandToSender(CommandSender sender, boolean feedback) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(VARIABLES_PATH + ".help-command-format")), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.HELP_COMMAND_FORMAT), feedback);
         return true;
     }
 
@@ -96,7 +95,7 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
      * @return always returns true
      */
     private boolean reloadCommand(CommandSender sender, boolean feedback) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(VARIABLES_PATH + ".reload-successful")), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.RELOAD_SUCCESSFUL), feedback);
         offlineCommands.onReload();
         return true;
     }
@@ -139,6 +138,8 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
     private void handleSecondArg(String[] args, List<String> completions) {
         if (args[0].equalsIgnoreCase("info")) {
             handleInfoArgs(args[1], completions);
+        } else if (args[0].equalsIgnoreCase("migrate")) {
+            handleMigrateArgs(args[1], completions);
         }
         handleAddOrRemoveArgs(args[0], args[1], completions);
     }
@@ -179,15 +180,7 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
      * @param completions the list to store completions
      */
     private void handleRemoveArgs(String arg2, List<String> completions) {
-        try {
-            List<UserStorage> userStorageList = offlineCommands.getStorageManager().getUserStorageList();
-            List<String> usernameList = userStorageList.stream()
-                    .map(userStorage -> Optional.ofNullable(userStorage.getUsername()).orElse(userStorage.getUuid().toString()))
-                    .collect(Collectors.toList());
-            StringUtil.copyPartialMatches(arg2, usernameList, completions);
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get data from database, fix error before continuing: " + e.getMessage());
-        }
+        completions.addAll(offlineCommands.getCompletionIndex().completeUsernames(arg2, MAX_COMPLETIONS));
     }
 
     /**
@@ -197,15 +190,20 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
      * @param completions the list to store completions
      */
     private void handleInfoArgs(String arg2, List<String> completions) {
-        try {
-            List<UserStorage> userStorageList = offlineCommands.getStorageManager().getUserStorageList();
-            List<String> allCommands = userStorageList.stream()
-                    .flatMap(userStorage -> userStorage.getCommands().stream())
-                    .map(CommandStorage::getIdentifier)
-                    .collect(Collectors.toList());
-            StringUtil.copyPartialMatches(arg2, allCommands, completions);
-        } catch (SQLException | JsonProcessingException e) {
-            e.printStackTrace();
+        completions.addAll(offlineCommands.getCompletionIndex().completeIdentifiers(arg2, MAX_COMPLETIONS));
+    }
+
+    /**
+     * Handles tab completion for the migrate arguments.
+     *
+     * @param arg2        the second argument
+     * @param completions the list to store completions
+     */
+    private void handleMigrateArgs(String arg2, List<String> completions) {
+        for (String backend : StorageBackend.NAMES) {
+            if (StringUtil.startsWithIgnoreCase(backend, arg2)) {
+                completions.add(backend.toLowerCase(Locale.ROOT));
+            }
         }
     }
 
@@ -219,33 +217,29 @@ public class OfflineCommandExecutor implements CommandExecutor, TabCompleter {
      */
     private void handleRemoveIdentifierArgs(String arg1, String arg2, String arg3, List<String> completions) {
         if (arg1.equalsIgnoreCase("remove")) {
-            try {
-                UUID uuid = getUUIDFromString(arg2);
-                UserStorage userStorage = offlineCommands.getStorageManager().getUser(uuid);
-                if (userStorage != null) {
-                    List<String> identifierList = userStorage.getCommands().stream()
-                            .map(CommandStorage::getIdentifier)
-                            .collect(Collectors.toList());
-                    identifierList.add("*");
-                    StringUtil.copyPartialMatches(arg3, identifierList, completions);
-                }
-            } catch (SQLException | JsonProcessingException e) {
-                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get user from database, fix error before continuing: " + e.getMessage());
+            UUID uuid = getUUIDFromString(arg2);
+            if (uuid == null) {
+                return;
+            }
+            completions.addAll(offlineCommands.getCompletionIndex().completeIdentifiers(uuid, arg3));
+            if (StringUtil.startsWithIgnoreCase("*", arg3)) {
+                completions.add("*");
             }
         }
     }
 
     /**
-     * Retrieves a UUID from a string.
+     * Retrieves a UUID from a string without leaving the calling thread, using the completion index
+     * for names so that completion also works off the main thread.
      *
      * @param arg the string argument
-     * @return the UUID
+     * @return the UUID, or null if it is neither a UUID nor the name of a user with stored commands
      */
     private UUID getUUIDFromString(String arg) {
         try {
             return UUID.fromString(arg);
         } catch (IllegalArgumentException ignored) {
-            return OfflineCommandsUtils.getDataFromUsername(arg).getKey();
+            return offlineCommands.getCompletionIndex().getUniqueId(arg);
         }
     }
 }
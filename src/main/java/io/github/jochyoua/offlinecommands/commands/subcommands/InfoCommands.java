@@ -1,35 +1,28 @@
 package io.github.jochyoua.offlinecommands.commands.subcommands;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import io.github.jochyoua.offlinecommands.OfflineCommands;
 import io.github.jochyoua.offlinecommands.OfflineCommandsUtils;
+import io.github.jochyoua.offlinecommands.api.DispatchScheduler;
+import io.github.jochyoua.offlinecommands.api.Message;
+import io.github.jochyoua.offlinecommands.api.MessageCatalog;
 import io.github.jochyoua.offlinecommands.api.Pagination;
+import io.github.jochyoua.offlinecommands.storage.AsyncStorageManager;
+import io.github.jochyoua.offlinecommands.storage.CommandStatistics;
 import io.github.jochyoua.offlinecommands.storage.CommandStorage;
 import io.github.jochyoua.offlinecommands.storage.SoundStorage;
 import io.github.jochyoua.offlinecommands.storage.UserStorage;
+import io.github.jochyoua.offlinecommands.storage.UserStorageCache;
 import org.bukkit.command.CommandSender;
 
-import java.sql.SQLException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 
-import static io.github.jochyoua.offlinecommands.OfflineCommandsUtils.applyChatColors;
-import static io.github.jochyoua.offlinecommands.VariableConstants.VARIABLES_PATH;
-
 public class InfoCommands {
 
-    private static final String LIST_COMMAND_HEADER_PATH = VARIABLES_PATH + ".list-command-header";
-    private static final String NO_USERS_FOUND_PATH = VARIABLES_PATH + ".no-users-found";
-    private static final String LIST_COMMAND_FOOTER_PATH = VARIABLES_PATH + ".list-command-footer";
-    private static final String LIST_COMMAND_FOOTER_END_PATH = VARIABLES_PATH + ".list-command-footer-end-of-list";
-    private static final String LIST_INVALID_PAGE_NUMBER_PATH = VARIABLES_PATH + ".list-invalid-page-number";
-    private static final String LIST_USER_UUID_PATH = VARIABLES_PATH + ".list-user-uuid";
-    private static final String LIST_NO_COMMANDS_FOUND_PATH = VARIABLES_PATH + ".list-no-commands-found";
-    private static final String LIST_COMMAND_FORMAT_PATH = VARIABLES_PATH + ".list-command-format";
-
     private final OfflineCommands offlineCommands;
+    private final Pagination pagination = new Pagination(0, 1);
 
     /**
      * Constructs a new InfoCommands object with the specified OfflineCommands.
@@ -42,44 +35,78 @@ public class InfoCommands {
 
     /**
      * Executes the list command to show the stored commands for offline players.
+     * Only the requested page is loaded, on the storage read threads, and it is sent from the global scheduler.
      *
      * @param sender   the sender of the command
      * @param feedback whether to send feedback messages to the sender
      * @param page     the page to show the player
-     * @return true if the command was executed successfully, false otherwise
+     * @return always returns true, the outcome is reported to the sender once the page is loaded
      */
     public boolean showListOfCommands(CommandSender sender, boolean feedback, int page) {
-        List<UserStorage> userStorageList;
-        try {
-            userStorageList = offlineCommands.getStorageManager().getUserStorageList();
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to initialize database, fix error before continuing: " + e.getMessage());
-            return false;
-        }
+        int pageSize = offlineCommands.getSettings().getPageSize();
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        storage.getUserPage(pagination, page, pageSize).whenCompleteAsync((userPage, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to initialize database, fix error before continuing: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                return;
+            }
+            sendListPage(sender, feedback, userPage);
+        }, storage.getSyncExecutor());
+        return true;
+    }
 
-        if (userStorageList.isEmpty()) {
+    /**
+     * Shows how many commands are stored and how many are queued for dispatch, read from live counters
+     * without touching the database.
+     *
+     * @param sender   the sender of the command
+     * @param feedback whether to send feedback messages to the sender
+     * @return always returns true
+     */
+    public boolean showStatistics(CommandSender sender, boolean feedback) {
+        CommandStatistics statistics = offlineCommands.getCommandStatistics();
+        DispatchScheduler dispatchScheduler = offlineCommands.getDispatchScheduler();
+        UserStorageCache userCache = offlineCommands.getAsyncStorageManager().getUserCache();
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.STATS_FORMAT,
+                statistics.getTotalCommands(),
+                statistics.getUsers(),
+                statistics.getCommands(CommandStorage.Executor.CONSOLE),
+                statistics.getCommands(CommandStorage.Executor.PLAYER),
+                statistics.getRecurringCommands(),
+                dispatchScheduler.getQueueDepth(),
+                dispatchScheduler.getQueuedPlayers(),
+                dispatchScheduler.getAverageWaitMillis(),
+                dispatchScheduler.getMaxWaitMillis(),
+                userCache.size(),
+                userCache.getHitRatePercent(),
+                userCache.getEvictions()), feedback);
+        return true;
+    }
+
+    /**
+     * Sends one loaded page of users to the sender.
+     *
+     * @param sender   the sender of the command
+     * @param feedback whether to send feedback messages to the sender
+     * @param userPage the loaded page
+     */
+    private void sendListPage(CommandSender sender, boolean feedback, Pagination.Page<UserStorage> userPage) {
+        if (userPage.getTotalPages() == 0) {
             sendNoUsersFoundMessage(sender, feedback);
-            return false;
+            return;
         }
 
         sendHeaderMessage(sender, feedback);
 
-        int pageSize = offlineCommands.getConfig().getInt("settings.page-size");
-        Pagination pagination = new Pagination(userStorageList.size(), pageSize);
-
-        if (!pagination.isValidPage(page)) {
-            sendInvalidPageMessage(sender, feedback, page, pagination.getTotalPages());
-            sendFooterMessage(sender, feedback, page, pagination.getTotalPages(), pagination.getNextPage(page));
-            return false;
+        if (!userPage.isValid()) {
+            sendInvalidPageMessage(sender, feedback, userPage.getPage(), userPage.getTotalPages());
+            sendFooterMessage(sender, feedback, userPage.getPage(), userPage.getTotalPages(), userPage.getNextPage());
+            return;
         }
 
-        userStorageList.stream()
-                .skip((long) (page - 1) * pageSize)
-                .limit(pageSize)
-                .forEach(userStorage -> processUserStorage(sender, feedback, userStorage));
+        userPage.getItems().forEach(userStorage -> processUserStorage(sender, feedback, userStorage));
 
-        sendFooterMessage(sender, feedback, page, pagination.getTotalPages(), pagination.getNextPage(page));
-        return true;
+        sendFooterMessage(sender, feedback, userPage.getPage(), userPage.getTotalPages(), userPage.getNextPage());
     }
 
     /**
@@ -89,7 +116,7 @@ public class InfoCommands {
      * @param feedback whether to send feedback messages to the sender
      */
     private void sendHeaderMessage(CommandSender sender, boolean feedback) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(LIST_COMMAND_HEADER_PATH)), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.LIST_COMMAND_HEADER), feedback);
     }
 
     /**
@@ -99,7 +126,7 @@ public class InfoCommands {
      * @param feedback whether to send feedback messages to the sender
      */
     private void sendNoUsersFoundMessage(CommandSender sender, boolean feedback) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(NO_USERS_FOUND_PATH)), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.NO_USERS_FOUND), feedback);
     }
 
     /**
@@ -111,7 +138,7 @@ public class InfoCommands {
      * @param totalPages the total number of pages
      */
     private void sendInvalidPageMessage(CommandSender sender, boolean feedback, int page, int totalPages) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(String.format(offlineCommands.getConfig().getString(LIST_INVALID_PAGE_NUMBER_PATH), page, totalPages)), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.LIST_INVALID_PAGE_NUMBER, page, totalPages), feedback);
     }
 
     /**
@@ -124,8 +151,8 @@ public class InfoCommands {
      * @param nextPage   the next page number
      */
     private void sendFooterMessage(CommandSender sender, boolean feedback, int page, int totalPages, int nextPage) {
-        String footerPath = nextPage <= totalPages ? LIST_COMMAND_FOOTER_PATH : LIST_COMMAND_FOOTER_END_PATH;
-        String listCommandFooter = applyChatColors(String.format(offlineCommands.getConfig().getString(footerPath), page, totalPages, nextPage));
+        Message footer = nextPage <= totalPages ? Message.LIST_COMMAND_FOOTER : Message.LIST_COMMAND_FOOTER_END_OF_LIST;
+        String listCommandFooter = offlineCommands.getMessages().get(footer, page, totalPages, nextPage);
         OfflineCommandsUtils.sendMessage(sender, listCommandFooter, feedback);
     }
 
@@ -137,11 +164,11 @@ public class InfoCommands {
      * @param userStorage the user storage object
      */
     private void processUserStorage(CommandSender sender, boolean feedback, UserStorage userStorage) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(String.format(offlineCommands.getConfig().getString(LIST_USER_UUID_PATH), userStorage.getUuid())), feedback);
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.LIST_USER_UUID, userStorage.getUuid()), feedback);
         List<CommandStorage> commandStorageList = getCommandStorageList(userStorage);
 
         if (commandStorageList.isEmpty()) {
-            OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(LIST_NO_COMMANDS_FOUND_PATH)), feedback);
+            OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.LIST_NO_COMMANDS_FOUND), feedback);
         } else {
             commandStorageList.forEach(commandStorage -> sendCommandStorageMessage(sender, feedback, commandStorage));
         }
@@ -159,42 +186,52 @@ public class InfoCommands {
 
     /**
      * Shows full command information based on the given identifier.
+     * The command is looked up on the storage thread and reported from the global scheduler.
      *
      * @param sender     the sender of the command
      * @param feedback   whether to send feedback messages to the sender
      * @param identifier the command identifier
-     * @return true if the command information was successfully retrieved, false otherwise
+     * @return always returns true, the outcome is reported to the sender once the command is loaded
      */
     public boolean showFullCommandInfo(CommandSender sender, boolean feedback, String identifier) {
-        StringBuilder stringBuilder = new StringBuilder();
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.LIST_COMMAND_INFO_HEADER), feedback);
 
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(VARIABLES_PATH + ".list-commandInfo-header")), feedback);
-
-        CommandStorage commandStorage;
-        try {
-            commandStorage = offlineCommands.getStorageManager().getCommandFromDatabase(identifier);
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get information from command: " + e.getMessage());
-            return false;
-        }
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        storage.getCommandFromDatabase(identifier).whenCompleteAsync((commandStorage, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get information from command: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                return;
+            }
+            sendCommandInfo(sender, feedback, commandStorage);
+        }, storage.getSyncExecutor());
+        return true;
+    }
 
+    /**
+     * Sends every field of the given command to the sender.
+     *
+     * @param sender         the sender of the command
+     * @param feedback       whether to send feedback messages to the sender
+     * @param commandStorage the command, or null if it was not found
+     */
+    private void sendCommandInfo(CommandSender sender, boolean feedback, CommandStorage commandStorage) {
         if (commandStorage == null) {
-            OfflineCommandsUtils.sendMessage(sender, applyChatColors(offlineCommands.getConfig().getString(VARIABLES_PATH + ".identifier-not-found")), feedback);
-            return false;
+            OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(Message.IDENTIFIER_NOT_FOUND), feedback);
+            return;
         }
 
+        StringBuilder stringBuilder = new StringBuilder();
         Map<String, Object> serializedFields = commandStorage.serialize();
-        String formatPath = offlineCommands.getConfig().getString(LIST_COMMAND_FORMAT_PATH);
+        MessageCatalog messages = offlineCommands.getMessages();
 
         serializedFields.forEach((fieldName, value) -> {
             if (value instanceof SoundStorage) {
                 value = ((SoundStorage) value).getSound();
             }
-            stringBuilder.append(String.format(formatPath, fieldName, value != null && !value.toString().isEmpty() ? value : "UNSET")).append("\n");
+            stringBuilder.append(messages.get(Message.LIST_COMMAND_FORMAT, fieldName, value != null && !value.toString().isEmpty() ? value : "UNSET")).append("\n");
         });
 
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(stringBuilder.toString().trim()), feedback);
-        return true;
+        OfflineCommandsUtils.sendMessage(sender, stringBuilder.toString().trim(), feedback);
     }
 
     /**
@@ -205,9 +242,9 @@ public class InfoCommands {
      * @param commandStorage the command storage object
      */
     private void sendCommandStorageMessage(CommandSender sender, boolean feedback, CommandStorage commandStorage) {
-        String message = String.format(offlineCommands.getConfig().getString(LIST_COMMAND_FORMAT_PATH),
+        String message = offlineCommands.getMessages().get(Message.LIST_COMMAND_FORMAT,
                 commandStorage.getIdentifier(),
                 commandStorage.getCommandValue());
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(message), feedback);
+        OfflineCommandsUtils.sendMessage(sender, message, feedback);
     }
 }
\ No newline at end of file
@@ -1,22 +1,22 @@
 package io.github.jochyoua.offlinecommands.commands.subcommands;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import io.github.jochyoua.offlinecommands.OfflineCommands;
 import io.github.jochyoua.offlinecommands.OfflineCommandsUtils;
+import io.github.jochyoua.offlinecommands.api.Message;
+import io.github.jochyoua.offlinecommands.storage.AsyncStorageManager;
 import io.github.jochyoua.offlinecommands.storage.CommandStorage;
 import io.github.jochyoua.offlinecommands.storage.SoundStorage;
-import io.github.jochyoua.offlinecommands.storage.UserStorage;
+import io.github.jochyoua.offlinecommands.storage.StorageBackend;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.Sound;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.entity.Player;
 
-import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import static io.github.jochyoua.offlinecommands.OfflineCommandsUtils.applyChatColors;
 import static io.github.jochyoua.offlinecommands.VariableConstants.*;
 
 public class ModifyCommands {
@@ -32,60 +32,90 @@ public class ModifyCommands {
     }
 
     /**
-     * Removes a command from the configuration based on provided arguments.
+     * Copies every stored command into the database of another backend, so the server can switch to it
+     * by changing {@code database-backend} and reloading. Only the console may start a migration.
      *
      * @param sender   the sender of the command
      * @param feedback whether to send feedback messages to the sender
      * @param args     the arguments provided with the command
-     * @return true if the command was removed successfully, false otherwise
+     * @return false if the syntax was incorrect or the sender is not the console, true once the copy has been handed to the storage thread
      */
-    public boolean removeCommandfromDatabase(CommandSender sender, boolean feedback, String... args) {
-        if (args.length != 3) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".incorrect-syntax")));
+    public boolean migrateDatabase(CommandSender sender, boolean feedback, String... args) {
+        if (!(sender instanceof ConsoleCommandSender)) {
+            sendFeedbackMessage(sender, feedback, Message.ONLY_CONSOLE);
             return false;
         }
-
-        sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".identifier-search"), args[2], args[1]));
-        Map.Entry<UUID, OfflinePlayer> userData = getUserData(args[1]);
-
-        UserStorage userStorage = getUserStorage(userData.getKey());
-        if (userStorage == null) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".player-does-not-exist"), args[1], args[2]));
+        String backend = args.length == 2 ? args[1].toUpperCase(Locale.ROOT) : "";
+        if (!StorageBackend.NAMES.contains(backend)) {
+            sendFeedbackMessage(sender, feedback, Message.INCORRECT_SYNTAX);
             return false;
         }
+        if (backend.equals(offlineCommands.getSettings().getDatabaseBackend())) {
+            sendFeedbackMessage(sender, feedback, Message.MIGRATION_SAME_BACKEND, backend);
+            return true;
+        }
 
-        List<CommandStorage> commandStorageList = new ArrayList<>(userStorage.getCommands());
-        if (!args[2].equalsIgnoreCase("*")) {
-            CommandStorage commandStorage = userStorage.getCommand(args[2]);
-            if (commandStorage == null) {
-                sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".identifier-not-found")));
-                return false;
+        sendFeedbackMessage(sender, feedback, Message.MIGRATION_STARTED, backend);
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        storage.migrateTo(backend).whenCompleteAsync((copied, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to migrate the database: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                sendFeedbackMessage(sender, feedback, Message.MIGRATION_FAILED);
+                return;
             }
-            commandStorageList.removeIf(offlineCommand -> offlineCommand.getIdentifier().equalsIgnoreCase(args[2]));
-        } else if (userStorage.getCommands().isEmpty()) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".identifier-not-found")));
+            offlineCommands.getDebugLogger().log(Level.INFO, String.format("Copied %1$d users into the %2$s database.", copied, backend));
+            sendFeedbackMessage(sender, feedback, Message.MIGRATION_FINISHED, copied, backend);
+        }, storage.getSyncExecutor());
+        return true;
+    }
+
+    /**
+     * Removes a command from the configuration based on provided arguments.
+     *
+     * @param sender   the sender of the command
+     * @param feedback whether to send feedback messages to the sender
+     * @param args     the arguments provided with the command
+     * @return false if the syntax was incorrect, true once the removal has been handed to the storage thread
+     */
+    public boolean removeCommandfromDatabase(CommandSender sender, boolean feedback, String... args) {
+        if (args.length != 3) {
+            sendFeedbackMessage(sender, feedback, Message.INCORRECT_SYNTAX);
             return false;
-        } else {
-            commandStorageList.clear();
         }
 
-        if (commandStorageList.isEmpty()) {
-            try {
-                offlineCommands.getStorageManager().removeUser(userStorage.getUuid());
-                offlineCommands.getDebugLogger().log(Level.INFO, String.format("Removed %1$s from database.", userStorage.getUsername()));
-            } catch (SQLException e) {
-                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to remove user from database: " + e.getMessage());
-            }
-        } else {
-            userStorage.setCommands(commandStorageList);
+        sendFeedbackMessage(sender, feedback, Message.IDENTIFIER_SEARCH, args[2], args[1]);
+        Map.Entry<UUID, OfflinePlayer> userData = getUserData(args[1]);
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
 
-            if (!updateUserStorage(userStorage)) {
-                sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".player-failed-to-update")));
-                return false;
+        storage.getUser(userData.getKey()).thenCompose(userStorage -> {
+            if (userStorage == null) {
+                return CompletableFuture.completedFuture(Message.PLAYER_DOES_NOT_EXIST);
             }
-        }
-        sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".identifier-found")));
-        offlineCommands.getDebugLogger().log(Level.INFO, String.format("Removed %1$s from database; Owned by %2$s.", args[2], userStorage.getUsername()));
+            if (!args[2].equalsIgnoreCase("*")) {
+                CommandStorage commandStorage = userStorage.getCommand(args[2]);
+                if (commandStorage == null) {
+                    return CompletableFuture.completedFuture(Message.IDENTIFIER_NOT_FOUND);
+                }
+                return storage.removeCommands(userStorage.getUuid(), Collections.singletonList(commandStorage.getIdentifier())).thenApply(ignored -> {
+                    offlineCommands.getDebugLogger().log(Level.INFO, String.format("Removed %1$s from database; Owned by %2$s.", args[2], userStorage.getUsername()));
+                    return Message.IDENTIFIER_FOUND;
+                });
+            }
+            if (userStorage.getCommands().isEmpty()) {
+                return CompletableFuture.completedFuture(Message.IDENTIFIER_NOT_FOUND);
+            }
+            return storage.removeUser(userStorage.getUuid()).thenApply(ignored -> {
+                offlineCommands.getDebugLogger().log(Level.INFO, String.format("Removed %1$s from database.", userStorage.getUsername()));
+                return Message.IDENTIFIER_FOUND;
+            });
+        }).whenCompleteAsync((message, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to update user: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                sendFeedbackMessage(sender, feedback, Message.PLAYER_FAILED_TO_UPDATE);
+                return;
+            }
+            sendFeedbackMessage(sender, feedback, message, args[1], args[2]);
+        }, storage.getSyncExecutor());
         return true;
     }
 
@@ -95,15 +125,15 @@ public class ModifyCommands {
      * @param sender   the sender of the command
      * @param feedback whether to send feedback messages to the sender
      * @param args     the arguments provided with the command
-     * @return true if the command was added successfully, false otherwise
+     * @return false if the command was rejected, true once the command has been executed or handed to the storage thread
      */
     public boolean addCommandToDatabase(CommandSender sender, boolean feedback, String... args) {
-        if (!(sender instanceof ConsoleCommandSender) && offlineCommands.getConfig().getBoolean(SETTINGS_PATH + ".only-allow-console-to-add-commands")) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".only-console")));
+        if (!(sender instanceof ConsoleCommandSender) && offlineCommands.getSettings().isOnlyAllowConsoleToAddCommands()) {
+            sendFeedbackMessage(sender, feedback, Message.ONLY_CONSOLE);
             return false;
         }
         if (args.length < 3) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".incorrect-syntax")));
+            sendFeedbackMessage(sender, feedback, Message.INCORRECT_SYNTAX);
             return false;
         }
 
@@ -120,7 +150,7 @@ public class ModifyCommands {
                 OfflineCommandsUtils.getValue("volume", args));
 
         if (commandToAdd == null || user == null) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".incorrect-syntax")));
+            sendFeedbackMessage(sender, feedback, Message.INCORRECT_SYNTAX);
             return false;
         }
 
@@ -134,37 +164,26 @@ public class ModifyCommands {
                 .recurring(recurring)
                 .build();
 
-        if (userData.getValue().isOnline() && offlineCommands.getConfig().getBoolean(SETTINGS_PATH + ".execute-if-online")) {
+        if (userData.getValue().isOnline() && offlineCommands.getSettings().isExecuteIfOnline()) {
             Player player = userData.getValue().getPlayer();
-            offlineCommands.getScheduler().global().run(() ->
-                    OfflineCommandsUtils.runCommandAsPlayer(player, commandStorage));
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".currently-online")));
+            offlineCommands.getDispatchScheduler().dispatch(player, commandStorage);
+            sendFeedbackMessage(sender, feedback, Message.CURRENTLY_ONLINE);
             return true;
         }
 
-        UserStorage userStorage = getUserStorage(userData.getKey());
-        if (userStorage == null) {
-            userStorage = UserStorage.builder()
-                    .username(userData.getValue().getName())
-                    .uuid(userData.getKey())
-                    .commands(Collections.singletonList(commandStorage))
-                    .build();
-        } else {
-            List<CommandStorage> commandStorageList = new ArrayList<>(userStorage.getCommands());
-            commandStorageList.add(commandStorage);
-            userStorage.setUsername(userData.getValue().getName());
-            userStorage.setCommands(commandStorageList);
-        }
-
-        if (!updateUserStorage(userStorage)) {
-            sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".player-failed-to-update")));
-            return false;
-        }
-
-        sendFeedbackMessage(sender, feedback, String.format(offlineCommands.getConfig().getString(VARIABLES_PATH + ".new-command-added"),
-                Optional.ofNullable(userStorage.getUsername()).orElse(userData.getValue().getName()),
-                commandStorage.getIdentifier()));
-        offlineCommands.getDebugLogger().log(Level.INFO, String.format("Added %1$s to database; Owned by %2$s.", commandStorage, userStorage.getUsername()));
+        String username = userData.getValue().getName();
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        storage.addCommand(userData.getKey(), username, commandStorage).whenCompleteAsync((ignored, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to update user: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                sendFeedbackMessage(sender, feedback, Message.PLAYER_FAILED_TO_UPDATE);
+                return;
+            }
+            sendFeedbackMessage(sender, feedback, Message.NEW_COMMAND_ADDED,
+                    Optional.ofNullable(username).orElse(userData.getKey().toString()),
+                    commandStorage.getIdentifier());
+            offlineCommands.getDebugLogger().log(Level.INFO, String.format("Added %1$s to database; Owned by %2$s.", commandStorage, username));
+        }, storage.getSyncExecutor());
         return true;
     }
 
@@ -191,8 +210,8 @@ public class ModifyCommands {
         return null;
     }
 
-    private void sendFeedbackMessage(CommandSender sender, boolean feedback, String message) {
-        OfflineCommandsUtils.sendMessage(sender, applyChatColors(message), feedback);
+    private void sendFeedbackMessage(CommandSender sender, boolean feedback, Message message, Object... args) {
+        OfflineCommandsUtils.sendMessage(sender, offlineCommands.getMessages().get(message, args), feedback);
     }
 
     private Map.Entry<UUID, OfflinePlayer> getUserData(String identifier) {
@@ -202,24 +221,4 @@ public class ModifyCommands {
             return OfflineCommandsUtils.getDataFromUsername(identifier);
         }
     }
-
-    private UserStorage getUserStorage(UUID uuid) {
-        try {
-            return offlineCommands.getStorageManager().getUser(uuid);
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get user from database: " + e.getMessage());
-            return null;
-        }
-    }
-
-
-    private boolean updateUserStorage(UserStorage userStorage) {
-        try {
-            offlineCommands.getStorageManager().addOrUpdateUser(userStorage);
-            return true;
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to update user: " + e.getMessage());
-            return false;
-        }
-    }
 }
\ No newline at end of file
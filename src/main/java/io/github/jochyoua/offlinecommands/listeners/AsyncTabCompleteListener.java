@@ -0,0 +1,64 @@
+package io.github.jochyoua.offlinecommands.listeners;
+
+import com.destroystokyo.paper.event.server.AsyncTabCompleteEvent;
+import io.github.jochyoua.offlinecommands.commands.OfflineCommandExecutor;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Answers tab completion for /offlinecommands from Paper's asynchronous tab complete event, so that
+ * completing a command never waits for the main thread. Only registered when running on Paper.
+ */
+public class AsyncTabCompleteListener implements Listener {
+    private static final List<String> LABELS = Arrays.asList("offlinecommands", "oc", "offlinecommands:offlinecommands", "offlinecommands:oc");
+
+    private final PluginCommand command;
+    private final OfflineCommandExecutor executor;
+
+    public AsyncTabCompleteListener(PluginCommand command, OfflineCommandExecutor executor) {
+        this.command = command;
+        this.executor = executor;
+    }
+
+    /**
+     * Checks whether the server fires {@link AsyncTabCompleteEvent}.
+     *
+     * @return true if the event class is available
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("com.destroystokyo.paper.event.server.AsyncTabCompleteEvent");
+            return true;
+        } catch (ClassNotFoundException ignored) {
+            return false;
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onAsyncTabComplete(AsyncTabCompleteEvent event) {
+        if (event.isHandled() || !event.isCommand()) {
+            return;
+        }
+
+        String buffer = event.getBuffer();
+        if (buffer.startsWith("/")) {
+            buffer = buffer.substring(1);
+        }
+        int space = buffer.indexOf(' ');
+        if (space < 0 || !LABELS.contains(buffer.substring(0, space).toLowerCase(Locale.ROOT))) {
+            return;
+        }
+        if (!command.testPermissionSilent(event.getSender())) {
+            return;
+        }
+
+        String[] args = buffer.substring(space + 1).split(" ", -1);
+        event.setCompletions(executor.onTabComplete(event.getSender(), command, buffer.substring(0, space), args));
+        event.setHandled(true);
+    }
+}
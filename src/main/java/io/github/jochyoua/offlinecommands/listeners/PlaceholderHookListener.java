@@ -0,0 +1,34 @@
+package io.github.jochyoua.offlinecommands.listeners;
+
+import io.github.jochyoua.offlinecommands.api.PlaceholderTemplate;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+
+/**
+ * Keeps track of whether PlaceholderAPI is enabled, so rendering a placeholder does not have to ask the plugin manager.
+ */
+public class PlaceholderHookListener implements Listener {
+    private static final String PLACEHOLDER_API = "PlaceholderAPI";
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        if (PLACEHOLDER_API.equals(event.getPlugin().getName())) {
+            PlaceholderTemplate.setPlaceholderApiEnabled(true);
+        }
+    }
+
+    /**
+     * The plugin is still marked as enabled while this event is fired, so the hook is switched off explicitly.
+     *
+     * @param event the event that occurred when a plugin was disabled
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        if (PLACEHOLDER_API.equals(event.getPlugin().getName())) {
+            PlaceholderTemplate.setPlaceholderApiEnabled(false);
+        }
+    }
+}
@@ -1,30 +1,82 @@
 package io.github.jochyoua.offlinecommands.listeners;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.api.DispatchScheduler;
+import io.github.jochyoua.offlinecommands.storage.AsyncStorageManager;
+import io.github.jochyoua.offlinecommands.storage.CommandStorage;
 import io.github.jochyoua.offlinecommands.storage.UserStorage;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 
-import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import static io.github.jochyoua.offlinecommands.VariableConstants.SETTINGS_PATH;
-
 public class PlayerConnectionListener implements Listener {
+    private static final long LEASE_RETRY_TICKS = 40L;
+
     private final OfflineCommands offlineCommands;
 
     public PlayerConnectionListener(OfflineCommands plugin) {
         this.offlineCommands = plugin;
     }
 
+    /**
+     * Starts loading the stored commands of a player who is allowed to log in, so that they are ready by the time
+     * the join handler runs. The event is already fired off the main thread; the load itself runs on the storage
+     * read threads and is not waited for. Nothing is prefetched from a shared database, as the join has to lease the
+     * player before it may read their commands.
+     *
+     * @param event the event that occurred when a player started logging in
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED
+                || offlineCommands.getAsyncStorageManager().isSharedDatabase() || !hasCommands(event.getUniqueId())) {
+            return;
+        }
+        offlineCommands.getUserPrefetchCache().prefetch(event.getUniqueId());
+    }
+
+    /**
+     * Drops the prefetched commands of a player whose login was refused after the pre-login.
+     *
+     * @param event the event that occurred when a player logged in
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            offlineCommands.getUserPrefetchCache().evict(event.getPlayer().getUniqueId());
+        }
+    }
+
+    /**
+     * Drops the prefetched commands of a player who left before they were executed, and releases the commands
+     * still queued for them so they run on the next join.
+     *
+     * @param event the event that occurred when a player quit
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        offlineCommands.getUserPrefetchCache().evict(event.getPlayer().getUniqueId());
+        offlineCommands.getDispatchScheduler().release(event.getPlayer().getUniqueId());
+    }
+
     /**
      * Handles the PlayerJoinEvent with the lowest priority.
-     * Schedules a task to run later that checks the user storage data for the player who joined and executes any commands stored for them.
+     * Players without stored or pending commands are skipped without scheduling anything.
+     * Otherwise schedules a task to run later that checks the user storage data for the player who joined and executes any commands stored for them.
      * If the user storage data is null, creates a new user storage object and adds it to the user storage data.
      * If the user storage data is not null, removes it from the user storage data and runs all the commands stored for the player.
      *
@@ -33,46 +85,179 @@ public class PlayerConnectionListener implements Listener {
     @EventHandler(priority = EventPriority.LOWEST)
     public void onJoin(PlayerJoinEvent playerJoinEvent) {
         Player player = playerJoinEvent.getPlayer();
-        int delay = offlineCommands.getConfig().getInt(SETTINGS_PATH + ".delay-execute-after-join-ticks", 20);
-
+        if (!hasCommands(player.getUniqueId())) {
+            return;
+        }
+        int delay = offlineCommands.getSettings().getDelayExecuteAfterJoinTicks();
 
         offlineCommands.getScheduler().entity(player).runDelayed(() -> handlePlayerJoin(player), delay);
     }
 
+    /**
+     * Checks the in-memory filter and the write queue for commands waiting for the given player.
+     * With a shared database other servers may have added commands the filter does not know about, so every
+     * player is checked.
+     *
+     * @param uuid the UUID of the player
+     * @return true if the player may have commands to run
+     */
+    private boolean hasCommands(UUID uuid) {
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        return storage.isSharedDatabase()
+                || offlineCommands.getPendingUserFilter().contains(uuid)
+                || storage.hasPendingWrite(uuid);
+    }
+
     /**
      * Handles the logic for a player joining the server.
+     * The user prefetched during login is used if it is still fresh, otherwise it is loaded on the storage thread.
+     * With a shared database the player is leased first instead, and loaded once the lease is held.
      *
      * @param player the player who joined the server
      */
     private void handlePlayerJoin(Player player) {
-        UserStorage userStorage = getUserStorage(player.getUniqueId());
-        if (userStorage == null || !player.isOnline()) {
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        if (storage.isSharedDatabase()) {
+            leaseAndRun(player, 0);
             return;
         }
+        CompletableFuture<UserStorage> user = offlineCommands.getUserPrefetchCache().take(player.getUniqueId());
+        if (user == null) {
+            user = storage.getUser(player.getUniqueId());
+        }
+        run(player, user, 0L);
+    }
 
+    /**
+     * Leases the player's queue so that no other server sharing the database runs their commands at the same time.
+     * While another server holds the lease, for example because the player just switched over from it and it is
+     * still releasing them, the lease is retried every two seconds for up to {@code lease-duration-seconds}.
+     *
+     * @param player  the player who joined the server
+     * @param attempt the number of attempts made so far
+     */
+    private void leaseAndRun(Player player, int attempt) {
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        storage.acquireLease(player.getUniqueId()).whenComplete((token, throwable) -> {
+            if (throwable != null) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to lease user in database, fix error before continuing: " + AsyncStorageManager.unwrap(throwable).getMessage());
+                return;
+            }
+            if (token < 0) {
+                long attempts = offlineCommands.getSettings().getLeaseDurationSeconds() * 20L / LEASE_RETRY_TICKS + 1;
+                if (attempt < attempts && player.isOnline()) {
+                    offlineCommands.getScheduler().entity(player).runDelayed(() -> leaseAndRun(player, attempt + 1), LEASE_RETRY_TICKS);
+                }
+                return;
+            }
+            if (token > 0) {
+                run(player, storage.getUser(player.getUniqueId()), token);
+            }
+        });
+    }
 
-        offlineCommands.getScheduler().global().run(() -> {
-
-            userStorage.runAllCommands(player);
-
-            try {
-                if (userStorage.getCommands().isEmpty()) {
-                    offlineCommands.getStorageManager().removeUser(player.getUniqueId());
-                } else {
-                    offlineCommands.getStorageManager().addOrUpdateUser(userStorage);
+    /**
+     * Claims the loaded player's non-recurring commands in one transaction and hands the commands this join claimed
+     * to the {@link DispatchScheduler}, which runs them across ticks on the
+     * global and the player's region. Each executed command is deleted on the storage thread again, and commands
+     * that were never dispatched are released, so a command is never run twice even if the server stops in between.
+     *
+     * @param player the player who joined the server
+     * @param user   the player's stored commands being loaded
+     * @param lease  the token of the lease held on the player, or 0 if the database is not shared
+     */
+    private void run(Player player, CompletableFuture<UserStorage> user, long lease) {
+        AsyncStorageManager storage = offlineCommands.getAsyncStorageManager();
+        user.thenCompose(userStorage -> {
+            if (userStorage == null || userStorage.getCommands() == null || !player.isOnline()) {
+                storage.releaseLease(player.getUniqueId(), lease);
+                return CompletableFuture.completedFuture(null);
+            }
+            List<String> claimable = new ArrayList<>();
+            for (CommandStorage command : userStorage.getCommands()) {
+                if (!Boolean.TRUE.equals(command.getRecurring())) {
+                    claimable.add(command.getIdentifier());
                 }
-            } catch (SQLException | JsonProcessingException e) {
-                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to update user in database, fix error before continuing: " + e.getMessage());
             }
+            return storage.claimCommands(player.getUniqueId(), claimable).thenAccept(claimed -> dispatch(player, userStorage.getCommands(), claimed, lease));
+        }).exceptionally(throwable -> {
+            storage.releaseLease(player.getUniqueId(), lease);
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to load and claim commands from database, fix error before continuing: " + AsyncStorageManager.unwrap(throwable).getMessage());
+            return null;
         });
     }
 
-    private UserStorage getUserStorage(UUID uuid) {
-        try {
-            return offlineCommands.getStorageManager().getUser(uuid);
-        } catch (SQLException | JsonProcessingException e) {
-            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to get user from database, fix error before continuing: " + e.getMessage());
+    /**
+     * Hands the recurring commands and the claimed non-recurring commands of a player to the dispatcher.
+     * If the player left while the commands were being claimed, the claims and the lease are released right away.
+     *
+     * @param player   the player to run the commands for
+     * @param commands the player's stored commands, in order
+     * @param claimed  the stored identifiers of the commands this join claimed
+     * @param lease    the token of the lease held on the player, or 0 if the database is not shared
+     */
+    private void dispatch(Player player, List<CommandStorage> commands, Set<String> claimed, long lease) {
+        List<CommandStorage> runnable = new ArrayList<>(commands.size());
+        for (CommandStorage command : commands) {
+            if (Boolean.TRUE.equals(command.getRecurring()) || claimed.contains(command.getIdentifier().toLowerCase(Locale.ROOT))) {
+                runnable.add(command);
+            }
+        }
+        if (!player.isOnline()) {
+            releaseClaims(player.getUniqueId(), runnable);
+            offlineCommands.getAsyncStorageManager().releaseLease(player.getUniqueId(), lease);
+            return;
+        }
+
+        if (!offlineCommands.getDispatchScheduler().submit(player, runnable, new JoinQueueListener(player.getUniqueId(), lease))) {
+            offlineCommands.getAsyncStorageManager().releaseLease(player.getUniqueId(), lease);
+        }
+    }
+
+    private void releaseClaims(UUID uuid, List<CommandStorage> commands) {
+        List<String> identifiers = new ArrayList<>();
+        for (CommandStorage command : commands) {
+            if (!Boolean.TRUE.equals(command.getRecurring())) {
+                identifiers.add(command.getIdentifier());
+            }
+        }
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        offlineCommands.getAsyncStorageManager().releaseClaims(uuid, identifiers).exceptionally(failure -> {
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to release claimed commands, they stay claimed until the next restart: " + AsyncStorageManager.unwrap(failure).getMessage());
             return null;
+        });
+    }
+
+    /**
+     * Deletes executed commands, releases the claims on dropped ones and gives up the lease once the queue is done.
+     */
+    private class JoinQueueListener implements DispatchScheduler.QueueListener {
+        private final UUID uuid;
+        private final long lease;
+
+        JoinQueueListener(UUID uuid, long lease) {
+            this.uuid = uuid;
+            this.lease = lease;
+        }
+
+        @Override
+        public void onConsumed(CommandStorage command) {
+            offlineCommands.getAsyncStorageManager().removeCommands(uuid, Collections.singletonList(command.getIdentifier())).exceptionally(failure -> {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to update user in database, fix error before continuing: " + AsyncStorageManager.unwrap(failure).getMessage());
+                return null;
+            });
+        }
+
+        @Override
+        public void onReleased(List<CommandStorage> commands) {
+            releaseClaims(uuid, commands);
+        }
+
+        @Override
+        public void onFinished() {
+            offlineCommands.getAsyncStorageManager().releaseLease(uuid, lease);
         }
     }
 }
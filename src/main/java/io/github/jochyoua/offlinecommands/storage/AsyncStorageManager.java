@@ -0,0 +1,695 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.api.Pagination;
+import io.github.jochyoua.offlinecommands.api.Settings;
+import org.bukkit.entity.Entity;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Runs every {@link StorageManager} call on a dedicated storage thread and exposes the results as
+ * {@link CompletableFuture}s, so that no SQLite I/O happens on a server or region thread.
+ * Reads run on a separate pool of threads, one per read-only connection, so they do not queue
+ * behind writes.
+ * <p>
+ * Writes are handed to a {@link WriteBehindQueue} and persisted in batches; reads flush the queue
+ * first whenever it holds changes they could observe. A write is queued on the calling thread, so a read
+ * started after it returns always sees it, and writes for the same user are queued in the order they were
+ * made, guarded by a lock per user rather than one for all of them.
+ * </p>
+ * <p>
+ * With {@code shared-database} set, other servers write to the same database, so nothing is cached in front of it,
+ * and a server takes a lease on a player through {@link #acquireLease} before running their commands. Leases are
+ * renewed and released in batches on the storage thread.
+ * </p>
+ * <p>
+ * Callers that need to touch Bukkit state with the result should continue on {@link #getSyncExecutor()}
+ * or {@link #entityExecutor(Entity)}, which hop back through the plugin's FoliaLib scheduler.
+ * </p>
+ */
+public class AsyncStorageManager {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int CONVERSION_BATCH_SIZE = 500;
+    private static final long CONVERSION_DELAY_MILLIS = 250;
+    private static final int MIGRATION_PAGE_SIZE = 500;
+    private static final long LEASE_MAINTENANCE_MILLIS = 1000;
+
+    private final OfflineCommands offlineCommands;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService readExecutor;
+    private final Executor syncExecutor;
+    private final WriteBehindQueue writeBehindQueue;
+    private final UserStorageCache userCache;
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger conversionGeneration = new AtomicInteger();
+    private final UserLocks userLocks = new UserLocks();
+    private final Map<UUID, Integer> deferredWrites = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ReentrantReadWriteLock storageSwap = new ReentrantReadWriteLock();
+    private final boolean sharedDatabase;
+    private final String serverId;
+    private final Map<UUID, Long> leases = new ConcurrentHashMap<>();
+    private final Set<UUID> releasedLeases = ConcurrentHashMap.newKeySet();
+    private final AtomicLong leaseTokens = new AtomicLong();
+    private final AtomicLong userSetVersion = new AtomicLong();
+    private long nextLeaseRenewal;
+    private ScheduledFuture<?> flushTask;
+    private ScheduledFuture<?> checkpointTask;
+
+    public AsyncStorageManager(OfflineCommands offlineCommands) {
+        this.offlineCommands = offlineCommands;
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "OfflineCommands-Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        Settings settings = offlineCommands.getSettings();
+        int readThreads = Math.max(1, settings.getDatabaseReadConnections());
+        AtomicInteger readThreadCount = new AtomicInteger();
+        this.readExecutor = Executors.newFixedThreadPool(readThreads, runnable -> {
+            Thread thread = new Thread(runnable, "OfflineCommands-Storage-Read-" + readThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncExecutor = runnable -> offlineCommands.getScheduler().global().run(runnable);
+        this.writeBehindQueue = new WriteBehindQueue(offlineCommands, new ListenerDispatcher());
+
+        this.sharedDatabase = settings.isSharedDatabase();
+        this.serverId = settings.getServerId().isEmpty() ? UUID.randomUUID().toString() : settings.getServerId();
+
+        this.userCache = new UserStorageCache(sharedDatabase ? 0 : settings.getUserCacheMaxEntries(), writeBehindQueue::isUncommitted);
+        this.listeners.add(userCache);
+
+        if (sharedDatabase) {
+            this.executor.scheduleWithFixedDelay(this::maintainLeases, LEASE_MAINTENANCE_MILLIS, LEASE_MAINTENANCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        scheduleMaintenance(settings);
+    }
+
+    /**
+     * (Re)schedules the periodic flush and checkpoint with the intervals from the given settings.
+     */
+    private synchronized void scheduleMaintenance(Settings settings) {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        long flushInterval = settings.getWriteBehindFlushIntervalMillis();
+        flushTask = executor.scheduleWithFixedDelay(this::flushWrites, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+        long checkpointInterval = settings.getDatabaseCheckpointIntervalSeconds();
+        if (checkpointInterval > 0) {
+            checkpointTask = executor.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Swaps the storage manager after a reload. Runs on the storage thread once every read already running on the
+     * read threads has finished, and keeps new reads waiting until the new database is open, so no read ever uses
+     * a connection that is being closed. Pending writes are persisted to the old database first, and the flush and
+     * checkpoint intervals of the reloaded settings take effect.
+     *
+     * @param reopen closes the current storage manager and publishes a new one
+     * @return a future completed once the new database is open and every listener has been loaded from it
+     */
+    public CompletableFuture<Void> replaceStorage(Runnable reopen) {
+        return supply(() -> {
+            storageSwap.writeLock().lock();
+            try {
+                flushWrites();
+                reopen.run();
+            } finally {
+                storageSwap.writeLock().unlock();
+            }
+            scheduleMaintenance(offlineCommands.getSettings());
+            return null;
+        }).thenCompose(ignored -> databaseLoaded());
+    }
+
+    /**
+     * Runs the given call on the storage thread.
+     * Checked exceptions are delivered as the cause of a {@link CompletionException}.
+     *
+     * @param call the database work to run
+     * @param <T>  the type of the result
+     * @return a future completed with the result of the call
+     */
+    public <T> CompletableFuture<T> supply(StorageCall<T> call) {
+        return supply(executor, call);
+    }
+
+    /**
+     * Runs the given read-only call on the read threads.
+     * Checked exceptions are delivered as the cause of a {@link CompletionException}.
+     *
+     * @param call the database read to run
+     * @param <T>  the type of the result
+     * @return a future completed with the result of the call
+     */
+    public <T> CompletableFuture<T> supplyRead(StorageCall<T> call) {
+        return supply(readExecutor, () -> {
+            storageSwap.readLock().lock();
+            try {
+                return call.call();
+            } finally {
+                storageSwap.readLock().unlock();
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> supply(Executor target, StorageCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            target.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Loads a user with their commands. Users in the cache are returned right away, without a thread hop,
+     * unless they have changes that are not committed yet.
+     *
+     * @param uuid the UUID of the user
+     * @return a future completed with the user, or with null if they have no stored commands
+     */
+    public CompletableFuture<UserStorage> getUser(UUID uuid) {
+        if (!writeBehindQueue.isUncommitted(uuid)) {
+            UserStorage cached = userCache.get(uuid);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return supplyRead(() -> {
+            writeBehindQueue.flushIfPending(storage(), uuid);
+            long stamp = userCache.stamp(uuid);
+            UserStorage user = storage().getUser(uuid);
+            userCache.putLoaded(uuid, user, stamp);
+            return user;
+        });
+    }
+
+    public CompletableFuture<List<UserStorage>> getUserStorageList() {
+        List<UserStorage> users = new ArrayList<>();
+        return forEachUser(users::add).thenApply(ignored -> users);
+    }
+
+    /**
+     * Streams every user, with their commands, to the consumer on a read thread without loading them all
+     * at once. Commands are decoded on the common fork/join pool if {@code database-parallel-decode} is set.
+     *
+     * @param consumer called once per user in UUID order, on a read thread
+     * @return a future completed once every user has been handed to the consumer
+     */
+    public CompletableFuture<Void> forEachUser(Consumer<UserStorage> consumer) {
+        return supplyRead(() -> {
+            writeBehindQueue.flushIfAnyPending(storage());
+            storage().forEachUser(consumer, offlineCommands.getSettings().isDatabaseParallelDecode());
+            return null;
+        });
+    }
+
+    /**
+     * Loads a single page of users in UUID order. The page is located through the cursor remembered by the
+     * pagination, or when jumping to a page that has not been visited yet, through an index-only seek from the
+     * closest page before it that has been, and only the users on that page are decoded. Cursors are forgotten
+     * once a user has been created or removed since they were remembered, as pages then start at other users.
+     *
+     * @param pagination the pagination holding the cursors; its total is updated with the current user count
+     * @param page       the page to load
+     * @param pageSize   the number of users per page
+     * @return a future completed with the page, which holds no items if the page number is invalid
+     */
+    public CompletableFuture<Pagination.Page<UserStorage>> getUserPage(Pagination pagination, int page, int pageSize) {
+        return supplyRead(() -> {
+            writeBehindQueue.flushIfAnyPending(storage());
+            StorageManager storage = storage();
+            long version = userSetVersion.get();
+            pagination.update(storage.countUsers(), pageSize, version);
+            if (!pagination.isValidPage(page)) {
+                return pagination.toPage(page, Collections.emptyList());
+            }
+
+            String cursor = pagination.getCursor(page);
+            if (cursor == null) {
+                Map.Entry<Integer, String> nearest = pagination.getNearestCursor(page);
+                cursor = storage.getUserKeyAfter(nearest.getValue(), (page - nearest.getKey()) * pageSize - 1);
+            }
+            List<UserStorage> users = cursor == null ? Collections.emptyList() : storage.getUsersAfter(cursor, pageSize);
+            if (!users.isEmpty()) {
+                pagination.setCursor(page, cursor);
+                pagination.setCursor(page + 1, users.get(users.size() - 1).getUuid().toString());
+            }
+            return pagination.toPage(page, users);
+        });
+    }
+
+    public CompletableFuture<CommandStorage> getCommandFromDatabase(String identifier) {
+        return supplyRead(() -> {
+            writeBehindQueue.flushIfAnyPending(storage());
+            return storage().getCommandFromDatabase(identifier);
+        });
+    }
+
+    /**
+     * Queues a command to be added to a user. The future completes once the write is queued,
+     * not once it has been persisted.
+     */
+    public CompletableFuture<Void> addCommand(UUID uuid, String username, CommandStorage command) {
+        return enqueue(uuid, write -> write.add(username, command));
+    }
+
+    /**
+     * Queues the removal of commands from a user. The future completes once the write is queued,
+     * not once it has been persisted.
+     */
+    public CompletableFuture<Void> removeCommands(UUID uuid, Collection<String> identifiers) {
+        return enqueue(uuid, write -> write.remove(identifiers));
+    }
+
+    /**
+     * Queues the removal of a user and all of their commands. The future completes once the write is queued,
+     * not once it has been persisted.
+     */
+    public CompletableFuture<Void> removeUser(UUID uuid) {
+        return enqueue(uuid, PendingWrite::removeAll);
+    }
+
+    /**
+     * Queues a write right away if there is room. Otherwise the write is handed to the storage thread, which
+     * flushes before queuing it, and until it has been queued every later write for the same user takes the
+     * same route, so that no write can overtake an earlier one for that user. The future fails if the queue is
+     * still full after that flush, which only happens while quarantined writes fill it.
+     */
+    private CompletableFuture<Void> enqueue(UUID uuid, Consumer<PendingWrite> operation) {
+        if (executor.isShutdown()) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new RejectedExecutionException("Storage is shutting down"));
+            return future;
+        }
+        ReentrantLock lock = userLocks.get(uuid);
+        lock.lock();
+        try {
+            if (!deferredWrites.containsKey(uuid) && writeBehindQueue.offer(uuid, operation)) {
+                if (writeBehindQueue.isBatchFull()) {
+                    scheduleFlush();
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            deferredWrites.merge(uuid, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+
+        return supply(() -> {
+            try {
+                writeBehindQueue.enqueue(storage(), uuid, operation);
+            } finally {
+                lock.lock();
+                try {
+                    deferredWrites.computeIfPresent(uuid, (key, count) -> count == 1 ? null : count - 1);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Flushes on the storage thread once, however many writers complete a batch before it gets to run.
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                flushScheduled.set(false);
+                flushWrites();
+            });
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    /**
+     * Claims the given non-recurring commands of a user before they are dispatched. Pending writes for the user
+     * are persisted first, so commands that were just added can be claimed and commands that were just removed cannot.
+     *
+     * @param uuid        the UUID of the user
+     * @param identifiers the identifiers of the commands about to be dispatched
+     * @return a future completed on the storage thread with the stored identifiers that were claimed
+     */
+    public CompletableFuture<Set<String>> claimCommands(UUID uuid, Collection<String> identifiers) {
+        return supply(() -> {
+            writeBehindQueue.flushIfPending(storage(), uuid);
+            return storage().claimCommands(uuid, identifiers);
+        });
+    }
+
+    /**
+     * Puts claimed commands that were never dispatched back, so they run on the next join.
+     *
+     * @param uuid        the UUID of the user
+     * @param identifiers the identifiers of the commands that were not dispatched
+     * @return a future completed once the claims have been released
+     */
+    public CompletableFuture<Void> releaseClaims(UUID uuid, Collection<String> identifiers) {
+        return supply(() -> {
+            storage().releaseClaims(uuid, identifiers);
+            return null;
+        });
+    }
+
+    /**
+     * Takes the lease on a user's queue for this server, so that no other server sharing the database runs their
+     * commands until it is released. Pending writes for the user are persisted first.
+     *
+     * @param uuid the UUID of the user
+     * @return a future completed on the storage thread with a token to release the lease with, 0 if the user has no
+     * stored commands, or -1 if another server holds the lease
+     */
+    public CompletableFuture<Long> acquireLease(UUID uuid) {
+        return supply(() -> {
+            writeBehindQueue.flushIfPending(storage(), uuid);
+            long now = System.currentTimeMillis();
+            boolean retry = "RETRY".equals(offlineCommands.getSettings().getClaimRecoveryPolicy());
+            StorageManager.LeaseResult result = storage().acquireLease(uuid, serverId, now, now + leaseMillis(), retry);
+            if (result != StorageManager.LeaseResult.ACQUIRED) {
+                return result == StorageManager.LeaseResult.NOT_STORED ? 0L : -1L;
+            }
+            long token = leaseTokens.incrementAndGet();
+            leases.put(uuid, token);
+            return token;
+        });
+    }
+
+    /**
+     * Marks a lease taken by {@link #acquireLease} to be released with the next batch. Does nothing if the lease
+     * has been taken again since, which hands it over to the newer holder.
+     *
+     * @param uuid  the UUID of the user
+     * @param token the token returned when the lease was taken
+     */
+    public void releaseLease(UUID uuid, long token) {
+        if (token > 0 && leases.remove(uuid, token)) {
+            releasedLeases.add(uuid);
+        }
+    }
+
+    /**
+     * Releases the leases given up since the last run and renews the others once a third of their duration has
+     * passed, each in one transaction. Queued writes are persisted before a lease is released, so the next holder
+     * sees every executed command as deleted.
+     */
+    private void maintainLeases() {
+        List<UUID> released = new ArrayList<>();
+        for (Iterator<UUID> iterator = releasedLeases.iterator(); iterator.hasNext(); ) {
+            UUID uuid = iterator.next();
+            iterator.remove();
+            if (!leases.containsKey(uuid)) {
+                released.add(uuid);
+            }
+        }
+        long now = System.currentTimeMillis();
+        try {
+            if (!released.isEmpty()) {
+                writeBehindQueue.flush(storage());
+                storage().releaseLeases(released, serverId);
+            }
+            long leaseMillis = leaseMillis();
+            if (now >= nextLeaseRenewal && !leases.isEmpty()) {
+                nextLeaseRenewal = now + leaseMillis / 3;
+                for (UUID lost : storage().renewLeases(new ArrayList<>(leases.keySet()), serverId, now + leaseMillis)) {
+                    leases.remove(lost);
+                }
+            }
+        } catch (SQLException e) {
+            releasedLeases.addAll(released);
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to renew or release player leases: " + e.getMessage());
+        }
+    }
+
+    private long leaseMillis() {
+        return TimeUnit.SECONDS.toMillis(offlineCommands.getSettings().getLeaseDurationSeconds());
+    }
+
+    /**
+     * @return true if the database is shared with other servers
+     */
+    public boolean isSharedDatabase() {
+        return sharedDatabase;
+    }
+
+    /**
+     * Writes every queued change to the database. Safe to call from any thread.
+     */
+    public void flushWrites() {
+        writeBehindQueue.flush(storage());
+    }
+
+    /**
+     * Copies every stored user into the database of another backend, on the storage thread so that no write
+     * lands between the flush and the copy. The current database stays in use; switching to the copy is done
+     * by changing {@code database-backend} and reloading. A target database that already holds users is refused,
+     * unless they are left over from an interrupted copy, which is then started over.
+     *
+     * @param backendName the backend to copy into, one of {@link StorageBackend#NAMES}
+     * @return a future completed with the number of users copied
+     */
+    public CompletableFuture<Integer> migrateTo(String backendName) {
+        return supply(() -> {
+            writeBehindQueue.flush(storage());
+            StorageManager target = new StorageManager(offlineCommands,
+                    StorageBackend.create(backendName, offlineCommands.getSettings(), offlineCommands.getDataFolder()));
+            try {
+                target.initializeDatabase();
+                return storage().copyTo(target, MIGRATION_PAGE_SIZE);
+            } finally {
+                target.closeConnection();
+            }
+        });
+    }
+
+    private void checkpoint() {
+        try {
+            storage().checkpoint();
+        } catch (SQLException e) {
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to checkpoint the database: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites commands still stored as JSON into the binary format in small batches on the storage thread,
+     * leaving room for regular writes in between. A conversion still running from before a reload is abandoned.
+     */
+    private void startJsonConversion() {
+        int generation = conversionGeneration.incrementAndGet();
+        try {
+            executor.execute(() -> convertJsonCommands(generation, 0L));
+        } catch (RejectedExecutionException ignored) {
+            // shutting down, the conversion continues on the next start
+        }
+    }
+
+    private void convertJsonCommands(int generation, long afterId) {
+        if (generation != conversionGeneration.get()) {
+            return;
+        }
+        long lastId;
+        try {
+            lastId = storage().convertJsonCommands(afterId, CONVERSION_BATCH_SIZE);
+        } catch (SQLException e) {
+            offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to convert stored commands to the binary format: " + e.getMessage());
+            return;
+        }
+        if (lastId < 0) {
+            if (afterId > 0) {
+                offlineCommands.getDebugLogger().log(Level.INFO, "Finished converting stored commands to the binary format.");
+            }
+            return;
+        }
+        try {
+            executor.schedule(() -> convertJsonCommands(generation, lastId), CONVERSION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down, the conversion continues on the next start
+        }
+    }
+
+    /**
+     * Returns the cache of recently read users, for its statistics.
+     *
+     * @return the user cache
+     */
+    public UserStorageCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Returns how many users currently have changes waiting to be written.
+     *
+     * @return the number of users with pending writes
+     */
+    public int getPendingWriteCount() {
+        return writeBehindQueue.size();
+    }
+
+    /**
+     * Checks whether the given user has changes that have not been committed yet.
+     *
+     * @param uuid the UUID of the user
+     * @return true if a write for the user is queued or being written
+     */
+    public boolean hasPendingWrite(UUID uuid) {
+        return writeBehindQueue.isUncommitted(uuid);
+    }
+
+    /**
+     * Registers a listener that is told about every committed change and about every (re)loaded database.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Lets every listener rebuild its state from the current database on the read threads.
+     * Called after the database has been opened at startup and after every reload.
+     *
+     * @return a future completed once every listener has been loaded
+     */
+    public CompletableFuture<Void> databaseLoaded() {
+        userSetVersion.incrementAndGet();
+        startJsonConversion();
+        return supplyRead(() -> {
+            for (StorageListener listener : listeners) {
+                listener.onDatabaseLoaded(storage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Returns an executor that runs tasks on the global region (the main thread outside of Folia).
+     *
+     * @return the sync executor
+     */
+    public Executor getSyncExecutor() {
+        return syncExecutor;
+    }
+
+    /**
+     * Returns an executor that runs tasks on the scheduler owning the given entity.
+     *
+     * @param entity the entity whose region should run the tasks
+     * @return the entity executor
+     */
+    public Executor entityExecutor(Entity entity) {
+        return runnable -> offlineCommands.getScheduler().entity(entity).run(runnable);
+    }
+
+    /**
+     * Stops accepting new work, waits for every queued call to finish and then writes
+     * everything still buffered, so consumed commands are persisted before the plugin disables.
+     */
+    public void shutdown() {
+        readExecutor.shutdown();
+        executor.shutdown();
+        try {
+            if (!readExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    || !executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Timed out waiting for pending storage operations to finish.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeBehindQueue.flushFinal(storage());
+        if (sharedDatabase) {
+            List<UUID> held = new ArrayList<>(leases.keySet());
+            held.addAll(releasedLeases);
+            try {
+                storage().releaseLeases(held, serverId);
+            } catch (SQLException e) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Failed to release player leases, they expire on their own: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Unwraps the {@link CompletionException} wrapper added by {@link CompletableFuture}.
+     *
+     * @param throwable the throwable passed to a completion stage
+     * @return the underlying cause
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    private StorageManager storage() {
+        return offlineCommands.getStorageManager();
+    }
+
+    /**
+     * Forwards committed changes to every registered listener, isolating them from each other's failures.
+     */
+    private class ListenerDispatcher implements StorageListener {
+
+        @Override
+        public void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+            if (userCreated) {
+                userSetVersion.incrementAndGet();
+            }
+            for (StorageListener listener : listeners) {
+                try {
+                    listener.onCommandsAdded(uuid, username, commands, userCreated);
+                } catch (RuntimeException e) {
+                    offlineCommands.getDebugLogger().log(Level.WARNING, "Storage listener failed: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+            if (userRemoved) {
+                userSetVersion.incrementAndGet();
+            }
+            for (StorageListener listener : listeners) {
+                try {
+                    listener.onCommandsRemoved(uuid, commands, userRemoved);
+                } catch (RuntimeException e) {
+                    offlineCommands.getDebugLogger().log(Level.WARNING, "Storage listener failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
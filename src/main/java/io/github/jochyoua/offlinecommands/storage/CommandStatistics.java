@@ -0,0 +1,119 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters over the stored command queues.
+ * <p>
+ * The counters are loaded with one aggregate query whenever the database is (re)loaded and are afterwards
+ * adjusted from every committed add, removal and consumed command, so reading them never touches the database.
+ * The queries and the reset run while writes are held, so no change is counted twice or lost between them.
+ * </p>
+ */
+public class CommandStatistics implements StorageListener {
+    private final AtomicLong totalCommands = new AtomicLong();
+    private final AtomicLong recurringCommands = new AtomicLong();
+    private final AtomicLong users = new AtomicLong();
+    private final Map<CommandStorage.Executor, AtomicLong> commandsByExecutor = new EnumMap<>(CommandStorage.Executor.class);
+
+    public CommandStatistics() {
+        for (CommandStorage.Executor executor : CommandStorage.Executor.values()) {
+            commandsByExecutor.put(executor, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void onDatabaseLoaded(StorageManager storage) throws SQLException, JsonProcessingException {
+        storage.readWithWritesHeld(() -> {
+            load(storage);
+            return null;
+        });
+    }
+
+    private void load(StorageManager storage) throws SQLException, JsonProcessingException {
+        long[] total = new long[1];
+        long[] recurring = new long[1];
+        Map<CommandStorage.Executor, Long> byExecutor = new EnumMap<>(CommandStorage.Executor.class);
+        storage.forEachCommandCount((executor, isRecurring, count) -> {
+            total[0] += count;
+            if (isRecurring) {
+                recurring[0] += count;
+            }
+            byExecutor.merge(executor, count, Long::sum);
+        });
+        int userCount = storage.countUsers();
+
+        totalCommands.set(total[0]);
+        recurringCommands.set(recurring[0]);
+        for (Map.Entry<CommandStorage.Executor, AtomicLong> entry : commandsByExecutor.entrySet()) {
+            entry.getValue().set(byExecutor.getOrDefault(entry.getKey(), 0L));
+        }
+        users.set(userCount);
+    }
+
+    @Override
+    public void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+        if (userCreated) {
+            users.incrementAndGet();
+        }
+        count(commands, 1);
+    }
+
+    @Override
+    public void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+        if (userRemoved) {
+            users.decrementAndGet();
+        }
+        count(commands, -1);
+    }
+
+    private void count(Collection<CommandStorage> commands, int delta) {
+        for (CommandStorage command : commands) {
+            totalCommands.addAndGet(delta);
+            commandsByExecutor.get(executorOf(command)).addAndGet(delta);
+            if (Boolean.TRUE.equals(command.getRecurring())) {
+                recurringCommands.addAndGet(delta);
+            }
+        }
+    }
+
+    private static CommandStorage.Executor executorOf(CommandStorage command) {
+        return command.getExecutor() != null ? command.getExecutor() : CommandStorage.Executor.CONSOLE;
+    }
+
+    /**
+     * @return the number of commands waiting to be executed
+     */
+    public long getTotalCommands() {
+        return totalCommands.get();
+    }
+
+    /**
+     * @return the number of waiting commands that stay queued after they run
+     */
+    public long getRecurringCommands() {
+        return recurringCommands.get();
+    }
+
+    /**
+     * @return the number of users with stored commands
+     */
+    public long getUsers() {
+        return users.get();
+    }
+
+    /**
+     * @param executor the executor type
+     * @return the number of waiting commands run by the given executor
+     */
+    public long getCommands(CommandStorage.Executor executor) {
+        return commandsByExecutor.get(executor).get();
+    }
+}
@@ -0,0 +1,436 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static io.github.jochyoua.offlinecommands.VariableConstants.DEFAULT_COMMAND;
+import static io.github.jochyoua.offlinecommands.VariableConstants.DEFAULT_SOUND;
+
+/**
+ * Reads and writes the {@code command} column straight from and to {@link CommandStorage} and
+ * {@link SoundStorage}, without building a {@code Map} per row.
+ * <p>
+ * New rows are written in a compact binary format: a format version byte, a flags byte, and then the
+ * fields in a fixed order as length-prefixed UTF-8 strings, with the executor as a single byte and the
+ * sound stored by name. Payloads of at least {@code compressThreshold} bytes are deflated when that makes
+ * them smaller. The version byte is always below any byte a JSON document can start with, so binary and
+ * JSON rows can be told apart and read side by side.
+ * </p>
+ * <p>
+ * JSON rows are the ones {@link CommandStorage#serialize()} produces, and reading them is as lenient as
+ * {@link CommandStorage#deserialize(java.util.Map)}: missing or null fields fall back to the defaults,
+ * unknown fields are skipped, numbers and booleans may be stored as strings, and a sound may be a plain
+ * name or an object holding one. Existing rows therefore keep loading unchanged.
+ * </p>
+ */
+final class CommandStorageCodec {
+    static final byte FORMAT_VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+    private static final int FIELD_RECURRING = 1;
+    private static final int FIELD_SOUND = 2;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private CommandStorageCodec() {
+    }
+
+    /**
+     * Encodes a command in the binary format.
+     *
+     * @param command           the command to encode
+     * @param compressThreshold the payload size from which deflating is attempted, 0 to never deflate
+     * @return the encoded command
+     */
+    static byte[] encode(CommandStorage command, int compressThreshold) {
+        BinaryWriter body = new BinaryWriter();
+        body.writeString(command.getIdentifier());
+        body.write(command.getExecutor() == CommandStorage.Executor.PLAYER ? 1 : 0);
+        body.writeString(command.getCommandValue());
+        body.writeString(command.getMessage());
+        body.writeString(command.getRequiredPermission());
+        SoundStorage sound = command.getSoundStorage();
+        body.write((Boolean.TRUE.equals(command.getRecurring()) ? FIELD_RECURRING : 0) | (sound != null ? FIELD_SOUND : 0));
+        if (sound != null) {
+            body.writeString(sound.getSound().name());
+            body.writeFloat(sound.getVolume());
+            body.writeFloat(sound.getPitch());
+        }
+
+        byte[] raw = body.toByteArray();
+        if (compressThreshold > 0 && raw.length >= compressThreshold) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length + 5 < raw.length) {
+                BinaryWriter out = new BinaryWriter();
+                out.write(FORMAT_VERSION);
+                out.write(FLAG_DEFLATED);
+                out.writeVarInt(raw.length);
+                out.write(deflated, 0, deflated.length);
+                return out.toByteArray();
+            }
+        }
+        BinaryWriter out = new BinaryWriter();
+        out.write(FORMAT_VERSION);
+        out.write(0);
+        out.write(raw, 0, raw.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a stored command in either format.
+     *
+     * @param data the stored bytes, binary or UTF-8 JSON
+     * @return the command
+     * @throws JsonProcessingException if the data is malformed or written by a newer format version
+     */
+    static CommandStorage decode(byte[] data) throws JsonProcessingException {
+        if (!isBinary(data)) {
+            return readCommand(data);
+        }
+        if (data[0] != FORMAT_VERSION) {
+            throw new JsonMappingException(null, "Unsupported command format version " + data[0]);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 2, data.length - 2);
+            if ((data[1] & FLAG_DEFLATED) != 0) {
+                int length = readVarInt(buffer);
+                buffer = ByteBuffer.wrap(inflate(data, buffer.position(), buffer.remaining(), length));
+            }
+            return readBinary(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException | DataFormatException e) {
+            throw new JsonMappingException(null, "Malformed binary command: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param data stored command bytes
+     * @return true if the bytes are in the binary format rather than JSON
+     */
+    static boolean isBinary(byte[] data) {
+        return data.length > 1 && data[0] > 0 && data[0] < '\t';
+    }
+
+    private static CommandStorage readBinary(ByteBuffer buffer) {
+        String identifier = readString(buffer);
+        CommandStorage.Executor executor = buffer.get() == 1 ? CommandStorage.Executor.PLAYER : CommandStorage.Executor.CONSOLE;
+        String commandValue = readString(buffer);
+        String message = readString(buffer);
+        String requiredPermission = readString(buffer);
+        int fields = buffer.get();
+        SoundStorage soundStorage = DEFAULT_COMMAND.getSoundStorage();
+        if ((fields & FIELD_SOUND) != 0) {
+            String soundName = readString(buffer);
+            soundStorage = SoundStorage.builder()
+                    .sound(soundName != null ? SoundStorage.parseSound(soundName) : DEFAULT_SOUND.getSound())
+                    .volume(buffer.getFloat())
+                    .pitch(buffer.getFloat())
+                    .build();
+        }
+
+        return CommandStorage.builder()
+                .identifier(identifier != null ? identifier : DEFAULT_COMMAND.getIdentifier())
+                .executor(executor)
+                .commandValue(commandValue != null ? commandValue : DEFAULT_COMMAND.getCommandValue())
+                .message(message != null ? message : DEFAULT_COMMAND.getMessage())
+                .requiredPermission(requiredPermission != null ? requiredPermission : DEFAULT_COMMAND.getRequiredPermission())
+                .soundStorage(soundStorage)
+                .recurring((fields & FIELD_RECURRING) != 0)
+                .build();
+    }
+
+    /**
+     * Strings are stored as their UTF-8 length plus one, followed by the bytes; a length of 0 means null.
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarInt(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] chunk = new byte[Math.min(raw.length, 8192)];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length, int inflatedLength) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] inflated = new byte[inflatedLength];
+            int read = 0;
+            while (read < inflatedLength && !inflater.finished()) {
+                int n = inflater.inflate(inflated, read, inflatedLength - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != inflatedLength) {
+                throw new DataFormatException("expected " + inflatedLength + " bytes but inflated " + read);
+            }
+            return inflated;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param json a single serialized command as UTF-8
+     * @return the command
+     * @throws JsonProcessingException if the JSON is malformed or not an object
+     */
+    private static CommandStorage readCommand(byte[] json) throws JsonProcessingException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            return readCommand(parser);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new JsonMappingException(null, "Failed to read command: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the command queue kept by older versions as one JSON array per user.
+     *
+     * @param json an array of serialized commands
+     * @return the commands in stored order
+     * @throws JsonProcessingException if the JSON is malformed or not an array of objects
+     */
+    static List<CommandStorage> readCommandList(String json) throws JsonProcessingException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            List<CommandStorage> commands = new ArrayList<>();
+            expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                expect(parser, token, JsonToken.START_OBJECT);
+                commands.add(readCommand(parser));
+            }
+            return commands;
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new JsonMappingException(null, "Failed to read commands: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the fields of a command object. The parser must be positioned on its {@code START_OBJECT}
+     * and is left on the matching {@code END_OBJECT}.
+     */
+    private static CommandStorage readCommand(JsonParser parser) throws IOException {
+        String identifier = null;
+        CommandStorage.Executor executor = null;
+        String commandValue = null;
+        String message = null;
+        String requiredPermission = null;
+        SoundStorage soundStorage = DEFAULT_COMMAND.getSoundStorage();
+        boolean recurring = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "identifier":
+                    identifier = readString(parser, value);
+                    break;
+                case "executor":
+                    String executorName = readString(parser, value);
+                    executor = executorName != null ? CommandStorage.Executor.getEnum(executorName) : null;
+                    break;
+                case "commandValue":
+                    commandValue = readString(parser, value);
+                    break;
+                case "message":
+                    message = readString(parser, value);
+                    break;
+                case "requiredPermission":
+                    requiredPermission = readString(parser, value);
+                    break;
+                case "soundStorage":
+                    if (value == JsonToken.START_OBJECT) {
+                        soundStorage = readSound(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "recurring":
+                    recurring = value == JsonToken.VALUE_TRUE
+                            || (value == JsonToken.VALUE_STRING && Boolean.parseBoolean(parser.getText()));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return CommandStorage.builder()
+                .identifier(identifier != null ? identifier : DEFAULT_COMMAND.getIdentifier())
+                .executor(executor != null ? executor : DEFAULT_COMMAND.getExecutor())
+                .commandValue(commandValue != null ? commandValue : DEFAULT_COMMAND.getCommandValue())
+                .message(message != null ? message : DEFAULT_COMMAND.getMessage())
+                .requiredPermission(requiredPermission != null ? requiredPermission : DEFAULT_COMMAND.getRequiredPermission())
+                .soundStorage(soundStorage)
+                .recurring(recurring)
+                .build();
+    }
+
+    /**
+     * Reads the fields of a sound object, positioned as for {@link #readCommand(JsonParser)}.
+     */
+    private static SoundStorage readSound(JsonParser parser) throws IOException {
+        String soundName = null;
+        float volume = 1.0f;
+        float pitch = 1.0f;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "sound":
+                    if (value == JsonToken.START_OBJECT) {
+                        soundName = readNestedSoundName(parser);
+                    } else {
+                        soundName = readString(parser, value);
+                    }
+                    break;
+                case "volume":
+                    volume = readFloat(parser, value, 1.0f);
+                    break;
+                case "pitch":
+                    pitch = readFloat(parser, value, 1.0f);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return SoundStorage.builder()
+                .sound(soundName != null ? SoundStorage.parseSound(soundName) : DEFAULT_SOUND.getSound())
+                .volume(volume)
+                .pitch(pitch)
+                .build();
+    }
+
+    private static String readNestedSoundName(JsonParser parser) throws IOException {
+        String soundName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("sound".equals(field) && value == JsonToken.VALUE_STRING) {
+                soundName = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return soundName;
+    }
+
+    /**
+     * @return the value if it is a string, otherwise null after skipping it
+     */
+    private static String readString(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static float readFloat(JsonParser parser, JsonToken value, float def) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_FLOAT || value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getFloatValue();
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            try {
+                return Float.parseFloat(parser.getText());
+            } catch (NumberFormatException ignored) {
+                return def;
+            }
+        }
+        parser.skipChildren();
+        return def;
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonProcessingException {
+        if (actual != expected) {
+            throw new JsonMappingException(parser, String.format("Expected %s but found %s", expected, actual));
+        }
+    }
+
+    /**
+     * A growable byte array with the few primitives the binary format needs.
+     */
+    private static final class BinaryWriter extends ByteArrayOutputStream {
+        BinaryWriter() {
+            super(128);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                write(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeFloat(float value) {
+            int bits = Float.floatToIntBits(value);
+            write(bits >>> 24);
+            write(bits >>> 16);
+            write(bits >>> 8);
+            write(bits);
+        }
+    }
+}
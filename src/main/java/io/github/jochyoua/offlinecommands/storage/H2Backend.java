@@ -0,0 +1,98 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.api.Settings;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores everything in an embedded H2 database on the MVStore engine.
+ * <p>
+ * MVStore is append-only and multi-versioned, so readers see the last committed state without waiting for
+ * the writer. All connections in this JVM share one open database. With {@code shared-database} set, the first
+ * server to open the file also serves it to the others over a local socket, as H2 only lets one process open
+ * a file at a time.
+ * </p>
+ */
+class H2Backend implements StorageBackend {
+    static final String NAME = "H2";
+
+    private static final String FILE_SUFFIX = ".db";
+    private static final List<String> SCHEMA = Arrays.asList(
+            "CREATE TABLE IF NOT EXISTS UserStorage (" +
+                    "uuid VARCHAR PRIMARY KEY, " +
+                    "username VARCHAR, " +
+                    "lease_owner VARCHAR, " +
+                    "lease_expires BIGINT NOT NULL DEFAULT 0" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS CommandStorage (" +
+                    "id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                    "uuid VARCHAR NOT NULL REFERENCES UserStorage(uuid) ON DELETE CASCADE, " +
+                    "identifier VARCHAR NOT NULL, " +
+                    "executor VARCHAR NOT NULL, " +
+                    "recurring BOOLEAN NOT NULL DEFAULT FALSE, " +
+                    "command VARBINARY NOT NULL, " +
+                    "state INTEGER NOT NULL DEFAULT 0" +
+                    ")",
+            "CREATE INDEX IF NOT EXISTS idx_command_uuid ON CommandStorage(uuid)",
+            "CREATE INDEX IF NOT EXISTS idx_command_identifier ON CommandStorage(identifier)",
+            "CREATE TABLE IF NOT EXISTS StorageCopy (" +
+                    "source VARCHAR NOT NULL, " +
+                    "started BIGINT NOT NULL" +
+                    ")"
+    );
+
+    private final String url;
+
+    /**
+     * H2 adds its own {@code .mv.db} extension, so a {@code .db} extension on the configured file is dropped.
+     */
+    H2Backend(File file, Settings settings) {
+        String path = file.getAbsolutePath();
+        if (path.endsWith(FILE_SUFFIX)) {
+            path = path.substring(0, path.length() - FILE_SUFFIX.length());
+        }
+        this.url = "jdbc:h2:file:" + path +
+                ";LOCK_TIMEOUT=" + settings.getDatabaseBusyTimeoutMillis() +
+                (settings.isSharedDatabase() ? ";AUTO_SERVER=TRUE" : "");
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(url);
+    }
+
+    @Override
+    public Connection openReadOnlyConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        connection.setReadOnly(true);
+        return connection;
+    }
+
+    @Override
+    public List<String> getSchema() {
+        return SCHEMA;
+    }
+
+    @Override
+    public void checkpoint(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CHECKPOINT");
+        }
+    }
+
+    @Override
+    public boolean supportsLegacyFormats() {
+        return false;
+    }
+}
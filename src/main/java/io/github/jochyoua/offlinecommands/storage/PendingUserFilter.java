@@ -0,0 +1,79 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Remembers which players have stored commands, so joins of everyone else can skip the database.
+ * <p>
+ * The set is loaded from the user table whenever the database is (re)loaded and is afterwards kept in step
+ * with committed writes: a user is added when their row is created and removed once their last command is gone.
+ * Changes committed while the set is being loaded are applied to both the old and the new set, so nothing
+ * is lost when they are swapped.
+ * </p>
+ */
+public class PendingUserFilter implements StorageListener {
+    private UuidHashSet users = new UuidHashSet(0);
+    private UuidHashSet loading;
+
+    @Override
+    public void onDatabaseLoaded(StorageManager storage) throws SQLException, JsonProcessingException {
+        UuidHashSet loaded = new UuidHashSet(storage.countUsers());
+        synchronized (this) {
+            loading = loaded;
+        }
+        try {
+            storage.forEachUserId(uuid -> {
+                synchronized (this) {
+                    loaded.add(uuid);
+                }
+            });
+            synchronized (this) {
+                users = loaded;
+            }
+        } finally {
+            synchronized (this) {
+                loading = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+        users.add(uuid);
+        if (loading != null) {
+            loading.add(uuid);
+        }
+    }
+
+    @Override
+    public synchronized void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+        if (!userRemoved) {
+            return;
+        }
+        users.remove(uuid);
+        if (loading != null) {
+            loading.remove(uuid);
+        }
+    }
+
+    /**
+     * Checks whether the given player has stored commands.
+     *
+     * @param uuid the UUID of the player
+     * @return true if the player has at least one stored command
+     */
+    public synchronized boolean contains(UUID uuid) {
+        return users.contains(uuid);
+    }
+
+    /**
+     * @return the number of players with stored commands
+     */
+    public synchronized int size() {
+        return users.size();
+    }
+}
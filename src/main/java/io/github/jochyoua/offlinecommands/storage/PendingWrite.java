@@ -0,0 +1,79 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.util.*;
+
+/**
+ * The coalesced, not yet persisted changes to one user's command queue.
+ * <p>
+ * Applying a PendingWrite means: delete everything the user has if {@link #isRemoveAll()} is set,
+ * then delete the {@link #getRemovedIdentifiers() removed identifiers}, then insert the
+ * {@link #getAddedCommands() added commands}. Recording a new operation keeps that order valid,
+ * so any number of adds and removals for the same user collapse into at most one of each.
+ * </p>
+ */
+class PendingWrite {
+    private final UUID uuid;
+    private String username;
+    private boolean removeAll;
+    private final Set<String> removedIdentifiers = new LinkedHashSet<>();
+    private final Map<String, CommandStorage> addedCommands = new LinkedHashMap<>();
+
+    PendingWrite(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    void add(String username, CommandStorage command) {
+        this.username = username;
+        addedCommands.put(command.getIdentifier().toLowerCase(Locale.ROOT), command);
+    }
+
+    void remove(Collection<String> identifiers) {
+        for (String identifier : identifiers) {
+            String key = identifier.toLowerCase(Locale.ROOT);
+            if (addedCommands.remove(key) == null) {
+                removedIdentifiers.add(key);
+            }
+        }
+    }
+
+    void removeAll() {
+        removeAll = true;
+        removedIdentifiers.clear();
+        addedCommands.clear();
+    }
+
+    /**
+     * Appends the operations of a newer write for the same user to this one.
+     *
+     * @param newer the write recorded after this one
+     */
+    void append(PendingWrite newer) {
+        if (newer.removeAll) {
+            removeAll();
+        }
+        remove(newer.removedIdentifiers);
+        for (CommandStorage command : newer.addedCommands.values()) {
+            add(newer.username, command);
+        }
+    }
+
+    UUID getUuid() {
+        return uuid;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    boolean isRemoveAll() {
+        return removeAll;
+    }
+
+    Set<String> getRemovedIdentifiers() {
+        return removedIdentifiers;
+    }
+
+    Collection<CommandStorage> getAddedCommands() {
+        return addedCommands.values();
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps prepared statements alive for the lifetime of a single connection.
+ * <p>
+ * Statements are keyed by their SQL string and handed out again on every call instead of being
+ * re-prepared. The cache is not thread-safe; callers must hold the lock guarding the owning connection.
+ * </p>
+ */
+class PreparedStatementCache implements AutoCloseable {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    PreparedStatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the cached statement for the given SQL, preparing it on first use.
+     * Parameters of a reused statement are cleared before it is returned.
+     *
+     * @param sql the SQL string
+     * @return a prepared statement bound to this cache's connection
+     * @throws SQLException if the statement could not be prepared
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            statement.clearParameters();
+            reused.incrementAndGet();
+            return statement;
+        }
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+        prepared.incrementAndGet();
+        return statement;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    long getPrepared() {
+        return prepared.get();
+    }
+
+    long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Closes every cached statement. The underlying connection is left open.
+     */
+    @Override
+    public void close() {
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+                // The connection is going away anyway
+            }
+        }
+        statements.clear();
+    }
+}
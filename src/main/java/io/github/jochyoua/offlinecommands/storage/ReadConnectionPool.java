@@ -0,0 +1,107 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of read-only connections to the database, each with its own statement cache.
+ * <p>
+ * The connections are opened by the {@link StorageBackend}, whose engine lets these readers see the last
+ * committed state without blocking, or getting blocked by, the single writer connection owned by {@link StorageManager}.
+ * </p>
+ */
+class ReadConnectionPool implements AutoCloseable {
+    private final BlockingQueue<PreparedStatementCache> idle;
+    private final List<PreparedStatementCache> all = new ArrayList<>();
+    private volatile boolean closed;
+
+    ReadConnectionPool(StorageBackend backend, int size) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection connection = backend.openReadOnlyConnection();
+                PreparedStatementCache cache = new PreparedStatementCache(connection);
+                all.add(cache);
+                idle.add(cache);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a connection for the duration of the given call, waiting for one to become idle if necessary.
+     *
+     * @param call the read to run
+     * @param <T>  the type of the result
+     * @return the result of the call
+     * @throws SQLException            if a database access error occurs or the pool is closed
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    <T> T withConnection(ReadCall<T> call) throws SQLException, JsonProcessingException {
+        if (closed) {
+            throw new SQLException("Read connection pool is closed");
+        }
+        PreparedStatementCache statements;
+        try {
+            statements = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+        try {
+            return call.call(statements);
+        } finally {
+            if (closed) {
+                closeQuietly(statements);
+            } else {
+                idle.add(statements);
+            }
+        }
+    }
+
+    long getPrepared() {
+        return all.stream().mapToLong(PreparedStatementCache::getPrepared).sum();
+    }
+
+    long getReused() {
+        return all.stream().mapToLong(PreparedStatementCache::getReused).sum();
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    /**
+     * Closes every idle connection. Connections that are borrowed at this point are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PreparedStatementCache statements;
+        while ((statements = idle.poll()) != null) {
+            closeQuietly(statements);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatementCache statements) {
+        statements.close();
+        try {
+            statements.getConnection().close();
+        } catch (SQLException ignored) {
+            // Nothing left to release
+        }
+    }
+
+    @FunctionalInterface
+    interface ReadCall<T> {
+        T call(PreparedStatementCache statements) throws SQLException, JsonProcessingException;
+    }
+}
@@ -54,15 +54,14 @@ public class SoundStorage implements ConfigurationSerializable {
                 resolvedSound = (Sound) rawSoundObject;
 
             } else if (rawSoundObject instanceof String) {
-                String soundName = (String) rawSoundObject;
-                resolvedSound = Sound.valueOf(soundName.toUpperCase());
+                resolvedSound = parseSound((String) rawSoundObject);
 
             } else if (rawSoundObject instanceof Map) {
                 Map<?, ?> nestedMap = (Map<?, ?>) rawSoundObject;
                 Object nestedSoundName = nestedMap.get("sound");
 
                 if (nestedSoundName instanceof String) {
-                    resolvedSound = Sound.valueOf(((String) nestedSoundName).toUpperCase());
+                    resolvedSound = parseSound((String) nestedSoundName);
                 }
 
             }
@@ -79,6 +78,21 @@ public class SoundStorage implements ConfigurationSerializable {
     }
 
 
+    /**
+     * Resolves a sound by name, ignoring case.
+     *
+     * @param soundName the name of the sound
+     * @return the sound, or the default sound if the name is not a valid Sound enum value
+     */
+    static Sound parseSound(String soundName) {
+        try {
+            return Sound.valueOf(soundName.toUpperCase());
+        } catch (IllegalArgumentException exception) {
+            Bukkit.getLogger().log(Level.WARNING, String.format("SoundStorage: invalid sound '%s', using default. Error: %s", soundName, exception.getMessage()));
+            return VariableConstants.DEFAULT_SOUND.getSound();
+        }
+    }
+
     private static float parseFloatOrDefault(Object o, float def) {
         if (o == null) return def;
         try {
@@ -0,0 +1,121 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.api.Settings;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores everything in a single SQLite file in WAL mode, so the read-only connections see the last committed
+ * state and never block, or get blocked by, the writer.
+ */
+class SqliteBackend implements StorageBackend {
+    static final String NAME = "SQLITE";
+
+    private static final List<String> SCHEMA = Arrays.asList(
+            "CREATE TABLE IF NOT EXISTS UserStorage (" +
+                    "uuid TEXT PRIMARY KEY, " +
+                    "username TEXT, " +
+                    "commands TEXT, " +
+                    "lease_owner TEXT, " +
+                    "lease_expires INTEGER NOT NULL DEFAULT 0" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS CommandStorage (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "uuid TEXT NOT NULL REFERENCES UserStorage(uuid) ON DELETE CASCADE, " +
+                    "identifier TEXT NOT NULL, " +
+                    "executor TEXT NOT NULL, " +
+                    "recurring INTEGER NOT NULL DEFAULT 0, " +
+                    "command BLOB NOT NULL, " +
+                    "state INTEGER NOT NULL DEFAULT 0" +
+                    ")",
+            "CREATE INDEX IF NOT EXISTS idx_command_uuid ON CommandStorage(uuid)",
+            "CREATE INDEX IF NOT EXISTS idx_command_identifier ON CommandStorage(identifier)",
+            "CREATE TABLE IF NOT EXISTS StorageCopy (" +
+                    "source TEXT NOT NULL, " +
+                    "started INTEGER NOT NULL" +
+                    ")"
+    );
+
+    private final String url;
+    private final List<String> connectionPragmas;
+
+    SqliteBackend(File file, Settings settings) {
+        this.url = "jdbc:sqlite:" + file.getAbsolutePath();
+        this.connectionPragmas = Arrays.asList(
+                "PRAGMA busy_timeout = " + settings.getDatabaseBusyTimeoutMillis(),
+                "PRAGMA cache_size = " + settings.getDatabaseCacheSize(),
+                "PRAGMA mmap_size = " + settings.getDatabaseMmapSize(),
+                "PRAGMA synchronous = " + settings.getDatabaseSynchronous()
+        );
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Opens the writer, which puts the database into WAL mode. Its transactions take the write lock when they
+     * begin, so one that reads before it writes waits for a server sharing the file instead of failing with
+     * {@code SQLITE_BUSY} when the other server committed in between.
+     */
+    @Override
+    public Connection openConnection() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+        Connection connection = DriverManager.getConnection(url, config.toProperties());
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA foreign_keys = ON");
+            applyPragmas(stmt);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection openReadOnlyConnection() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        Connection connection = DriverManager.getConnection(url, config.toProperties());
+        try (Statement stmt = connection.createStatement()) {
+            applyPragmas(stmt);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private void applyPragmas(Statement stmt) throws SQLException {
+        for (String pragma : connectionPragmas) {
+            stmt.execute(pragma);
+        }
+    }
+
+    @Override
+    public List<String> getSchema() {
+        return SCHEMA;
+    }
+
+    @Override
+    public void checkpoint(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA wal_checkpoint(PASSIVE)");
+        }
+    }
+
+    @Override
+    public boolean supportsLegacyFormats() {
+        return true;
+    }
+}
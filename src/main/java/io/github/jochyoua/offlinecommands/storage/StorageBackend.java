@@ -0,0 +1,92 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.api.Settings;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The database engine behind a {@link StorageManager}.
+ * <p>
+ * Every operation StorageManager provides, including the bulk writes and streaming reads, is written in SQL
+ * that all backends understand. A backend only supplies what differs between engines: how connections are
+ * opened and tuned, how the tables are declared and how committed changes are checkpointed.
+ * </p>
+ */
+public interface StorageBackend {
+    /**
+     * The names accepted by {@code database-backend} and {@link #create(String, Settings, File)}.
+     */
+    List<String> NAMES = Arrays.asList(SqliteBackend.NAME, H2Backend.NAME);
+
+    /**
+     * Creates the backend with the given name for the {@code database-file} in the settings.
+     * Each backend derives its own file from that setting, so two backends never open the same file.
+     *
+     * @param name       one of {@link #NAMES}
+     * @param settings   the settings to tune the connections with
+     * @param dataFolder the folder relative database files are resolved against
+     * @return the backend
+     * @throws IllegalArgumentException if there is no backend with the given name
+     */
+    static StorageBackend create(String name, Settings settings, File dataFolder) {
+        File file = new File(settings.getDatabaseFile());
+        if (!file.isAbsolute()) {
+            file = new File(dataFolder, settings.getDatabaseFile());
+        }
+        switch (name) {
+            case SqliteBackend.NAME:
+                return new SqliteBackend(file, settings);
+            case H2Backend.NAME:
+                return new H2Backend(file, settings);
+            default:
+                throw new IllegalArgumentException("Unknown database backend: " + name);
+        }
+    }
+
+    /**
+     * @return the name of this backend, one of {@link #NAMES}
+     */
+    String getName();
+
+    /**
+     * Opens the connection that writes, ready for use.
+     *
+     * @return a new connection
+     * @throws SQLException if a database access error occurs
+     */
+    Connection openConnection() throws SQLException;
+
+    /**
+     * Opens a connection that is only used for reads, ready for use.
+     * Called after the writer connection has been opened and the tables have been created.
+     *
+     * @return a new connection
+     * @throws SQLException if a database access error occurs
+     */
+    Connection openReadOnlyConnection() throws SQLException;
+
+    /**
+     * @return the statements creating the tables and indexes if they do not exist, in order
+     */
+    List<String> getSchema();
+
+    /**
+     * Copies committed changes from the log back into the database file without blocking readers or the writer.
+     *
+     * @param connection the writer connection
+     * @throws SQLException if a database access error occurs
+     */
+    void checkpoint(Connection connection) throws SQLException;
+
+    /**
+     * Databases written by versions from before this interface existed are always SQLite, and may still hold
+     * commands in the legacy JSON column, commands stored as JSON text and tables missing later columns.
+     *
+     * @return true if databases of this backend may need those upgrades
+     */
+    boolean supportsLegacyFormats();
+}
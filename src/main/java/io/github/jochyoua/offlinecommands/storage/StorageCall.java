@@ -0,0 +1,16 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.sql.SQLException;
+
+/**
+ * A unit of database work that may fail with the same checked exceptions as {@link StorageManager}.
+ *
+ * @param <T> the type of the result
+ */
+@FunctionalInterface
+public interface StorageCall<T> {
+
+    T call() throws SQLException, JsonProcessingException;
+}
@@ -0,0 +1,50 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Receives changes to the stored command queues after they have been committed to the database.
+ * <p>
+ * Listeners are registered with {@link AsyncStorageManager} and are called on storage threads,
+ * so implementations must be thread-safe and must not block.
+ * </p>
+ */
+public interface StorageListener {
+
+    /**
+     * Called whenever a database has been opened, at startup and after every reload, so that
+     * in-memory state derived from the database can be rebuilt from scratch.
+     *
+     * @param storage the freshly initialized storage manager
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    default void onDatabaseLoaded(StorageManager storage) throws SQLException, JsonProcessingException {
+    }
+
+    /**
+     * Called after commands have been added to a user.
+     *
+     * @param uuid        the UUID of the user
+     * @param username    the username of the user
+     * @param commands    the commands that were added
+     * @param userCreated true if the user was not stored before and has been created
+     */
+    default void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+    }
+
+    /**
+     * Called after commands have been removed from a user, whether by an admin or because they were consumed.
+     * Only the identifier, executor and recurring flag of the removed commands are populated.
+     *
+     * @param uuid        the UUID of the user
+     * @param commands    the commands that were actually deleted
+     * @param userRemoved true if the user has no commands left and was removed as well
+     */
+    default void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+    }
+}
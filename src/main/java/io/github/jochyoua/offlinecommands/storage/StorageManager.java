@@ -1,68 +1,443 @@
 package io.github.jochyoua.offlinecommands.storage;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.api.Settings;
 
-import java.io.File;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
+/**
+ * Runs every storage operation against the database of a {@link StorageBackend}, with one writer connection
+ * and a pool of read-only connections. The SQL here is portable except for the SQLite-only statements used to
+ * upgrade data written by older versions, {@code PRAGMA user_version} and the {@code typeof} check that finds
+ * JSON commands, which only run on backends that {@link StorageBackend#supportsLegacyFormats() support legacy formats}.
+ */
 public class StorageManager {
-    private static final ObjectMapper objectMapper = new ObjectMapper();
-    private final String url;
+    /**
+     * A stored command waiting for its player to join.
+     */
+    private static final int STATE_PENDING = 0;
+    /**
+     * A non-recurring command handed to the dispatcher whose execution has not been confirmed yet.
+     * Once it has run the row is deleted, so there is no separate state for executed commands.
+     */
+    private static final int STATE_CLAIMED = 1;
+
+    /**
+     * The {@code user_version} of a legacy database once its identifiers have been lower-cased.
+     */
+    private static final int IDENTIFIERS_NORMALIZED_VERSION = 1;
+    private static final String SELECT_USER_VERSION = "PRAGMA user_version";
+    private static final String SET_USER_VERSION = "PRAGMA user_version = " + IDENTIFIERS_NORMALIZED_VERSION;
+    private static final String NORMALIZE_IDENTIFIERS = "UPDATE CommandStorage SET identifier = lower(identifier) WHERE identifier <> lower(identifier)";
+
+    private static final String SELECT_LEGACY_USERS = "SELECT uuid, commands FROM UserStorage WHERE commands IS NOT NULL";
+    private static final String CLEAR_LEGACY_COMMANDS = "UPDATE UserStorage SET commands = NULL WHERE uuid = ?";
+
+    private static final String SELECT_USER = "SELECT u.uuid, u.username, c.command FROM UserStorage u " +
+            "LEFT JOIN CommandStorage c ON c.uuid = u.uuid WHERE u.uuid = ? ORDER BY c.id";
+    private static final String SELECT_ALL_USERS = "SELECT u.uuid, u.username, c.command FROM UserStorage u " +
+            "LEFT JOIN CommandStorage c ON c.uuid = u.uuid ORDER BY u.uuid, c.id";
+    private static final String COUNT_USERS = "SELECT COUNT(*) FROM UserStorage";
+    private static final String SELECT_USER_KEY_AFTER = "SELECT uuid FROM UserStorage WHERE uuid > ? ORDER BY uuid LIMIT 1 OFFSET ?";
+    private static final String SELECT_USER_PAGE = "SELECT u.uuid, u.username, c.command FROM " +
+            "(SELECT uuid, username FROM UserStorage WHERE uuid > ? ORDER BY uuid LIMIT ?) u " +
+            "LEFT JOIN CommandStorage c ON c.uuid = u.uuid ORDER BY u.uuid, c.id";
+    private static final String SELECT_COMMAND_SUMMARIES = "SELECT identifier, executor, recurring FROM CommandStorage WHERE uuid = ?";
+    private static final String COUNT_COMMANDS_BY_TYPE = "SELECT executor, recurring, COUNT(*) AS amount FROM CommandStorage " +
+            "GROUP BY executor, recurring";
+    private static final String SELECT_USER_IDS = "SELECT uuid FROM UserStorage";
+    private static final String SELECT_COMMAND_KEYS = "SELECT c.uuid, u.username, c.identifier FROM CommandStorage c " +
+            "JOIN UserStorage u ON u.uuid = c.uuid";
+    private static final String SELECT_COMMAND = "SELECT command FROM CommandStorage WHERE identifier = ? LIMIT 1";
+    private static final String SELECT_JSON_COMMANDS = "SELECT id, command FROM CommandStorage " +
+            "WHERE id > ? AND typeof(command) = 'text' ORDER BY id LIMIT ?";
+    private static final String UPDATE_COMMAND = "UPDATE CommandStorage SET command = ? WHERE id = ?";
+    private static final String INSERT_USER = "INSERT INTO UserStorage(uuid, username) VALUES(?, ?)";
+    private static final String UPDATE_USERNAME = "UPDATE UserStorage SET username = ? WHERE uuid = ?";
+    private static final String INSERT_COMMAND = "INSERT INTO CommandStorage(uuid, identifier, executor, recurring, command) VALUES(?, ?, ?, ?, ?)";
+    private static final String DELETE_COMMAND = "DELETE FROM CommandStorage WHERE uuid = ? AND identifier = ?";
+    private static final String DELETE_USER_COMMANDS = "DELETE FROM CommandStorage WHERE uuid = ?";
+    private static final String DELETE_USER = "DELETE FROM UserStorage WHERE uuid = ?";
+    private static final String CLAIM_COMMAND = "UPDATE CommandStorage SET state = " + STATE_CLAIMED +
+            " WHERE uuid = ? AND identifier = ? AND state = " + STATE_PENDING;
+    private static final String RELEASE_CLAIM = "UPDATE CommandStorage SET state = " + STATE_PENDING +
+            " WHERE uuid = ? AND identifier = ? AND state = " + STATE_CLAIMED;
+    private static final String UNLEASED_USERS = "SELECT uuid FROM UserStorage WHERE lease_owner IS NULL OR lease_expires < ?";
+    private static final String RELEASE_UNLEASED_CLAIMS = "UPDATE CommandStorage SET state = " + STATE_PENDING +
+            " WHERE state = " + STATE_CLAIMED + " AND uuid IN (" + UNLEASED_USERS + ")";
+    private static final String DELETE_UNLEASED_CLAIMED = "DELETE FROM CommandStorage WHERE state = " + STATE_CLAIMED +
+            " AND uuid IN (" + UNLEASED_USERS + ")";
+    private static final String RELEASE_USER_CLAIMS = "UPDATE CommandStorage SET state = " + STATE_PENDING +
+            " WHERE uuid = ? AND state = " + STATE_CLAIMED;
+    private static final String DELETE_USER_CLAIMED = "DELETE FROM CommandStorage WHERE uuid = ? AND state = " + STATE_CLAIMED;
+    private static final String SELECT_LEASE_OWNER = "SELECT lease_owner FROM UserStorage WHERE uuid = ?";
+    private static final String ACQUIRE_LEASE = "UPDATE UserStorage SET lease_owner = ?, lease_expires = ? " +
+            "WHERE uuid = ? AND (lease_owner IS NULL OR lease_owner = ? OR lease_expires < ?)";
+    private static final String RENEW_LEASE = "UPDATE UserStorage SET lease_expires = ? WHERE uuid = ? AND lease_owner = ?";
+    private static final String RELEASE_LEASE = "UPDATE UserStorage SET lease_owner = NULL, lease_expires = 0 WHERE uuid = ? AND lease_owner = ?";
+    private static final String DELETE_EMPTY_USERS = "DELETE FROM UserStorage WHERE NOT EXISTS " +
+            "(SELECT 1 FROM CommandStorage c WHERE c.uuid = UserStorage.uuid)";
+    private static final String DELETE_USER_IF_EMPTY = "DELETE FROM UserStorage WHERE uuid = ? " +
+            "AND NOT EXISTS (SELECT 1 FROM CommandStorage WHERE uuid = ?)";
+
+    private static final String SELECT_COPY_SOURCE = "SELECT source FROM StorageCopy";
+    private static final String INSERT_COPY_SOURCE = "INSERT INTO StorageCopy(source, started) VALUES(?, ?)";
+    private static final String DELETE_COPY_SOURCE = "DELETE FROM StorageCopy";
+    private static final String DELETE_ALL_COMMANDS = "DELETE FROM CommandStorage";
+    private static final String DELETE_ALL_USERS = "DELETE FROM UserStorage";
+
+    private static final int PARALLEL_DECODE_WINDOW = 64;
+
+    private final OfflineCommands offlineCommands;
+    private final StorageBackend backend;
+    private final AtomicLong connectionOpens = new AtomicLong();
+    private final int readConnections;
+    private final int compressThreshold;
     private Connection connection;
+    private PreparedStatementCache statementCache;
+    private volatile ReadConnectionPool readPool;
 
+    /**
+     * Opens the database of the backend selected by {@code database-backend}.
+     *
+     * @param offlineCommands the plugin
+     */
     public StorageManager(OfflineCommands offlineCommands) {
-        this.url = "jdbc:sqlite:" + new File(offlineCommands.getDataFolder(), "user_database.db").getAbsolutePath();
+        this(offlineCommands, StorageBackend.create(offlineCommands.getSettings().getDatabaseBackend(),
+                offlineCommands.getSettings(), offlineCommands.getDataFolder()));
+    }
+
+    /**
+     * @param offlineCommands the plugin
+     * @param backend         the database engine to store everything in
+     */
+    public StorageManager(OfflineCommands offlineCommands, StorageBackend backend) {
+        this.offlineCommands = offlineCommands;
+        this.backend = backend;
+        Settings settings = offlineCommands.getSettings();
+        this.readConnections = settings.getDatabaseReadConnections();
+        this.compressThreshold = settings.getDatabaseCompressThresholdBytes();
+    }
+
+    /**
+     * Initializes the database by creating the UserStorage and CommandStorage tables if they do not exist,
+     * then, on backends older versions may have written, adds missing columns, moves any commands still
+     * stored in the legacy JSON {@code commands} column into their own rows and lower-cases identifiers
+     * stored before they were normalized.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void initializeDatabase() throws SQLException {
+        try (Statement stmt = getConnection().createStatement()) {
+            for (String sql : backend.getSchema()) {
+                stmt.execute(sql);
+            }
+        }
+        if (backend.supportsLegacyFormats()) {
+            addMissingColumns();
+            migrateLegacyCommands();
+            normalizeIdentifiers();
+        }
+        openReadPool();
     }
 
     /**
-     * Initializes the database by creating the UserStorage table if it does not exist.
+     * Opens the read-only connections used by list, info and tab completion reads.
+     * Must run after the writer has been opened and the tables have been created.
      *
      * @throws SQLException if a database access error occurs
      */
-    public void initializeDatabase() throws SQLException {
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement()) {
-            String createUserStorageTable = "CREATE TABLE IF NOT EXISTS UserStorage (" +
-                    "uuid TEXT PRIMARY KEY, " +
-                    "username TEXT, " +
-                    "commands TEXT" +
-                    ")";
-            stmt.execute(createUserStorageTable);
+    private void openReadPool() throws SQLException {
+        if (readConnections == 0 || readPool != null) {
+            return;
         }
+        readPool = new ReadConnectionPool(backend, readConnections);
+        connectionOpens.addAndGet(readConnections);
     }
 
     /**
-     * Retrieves a connection to the database. If the current connection is
-     * closed or null, a new connection is established.
+     * Copies committed changes back into the main database file without blocking readers or the writer.
      *
-     * @return a connection to the SQLite database
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void checkpoint() throws SQLException {
+        backend.checkpoint(getConnection());
+    }
+
+    /**
+     * Rewrites up to {@code limit} commands that are still stored as JSON into the binary format,
+     * in one transaction. Rows that cannot be parsed are left as they are and skipped.
+     *
+     * @param afterId only rows with a greater id are converted
+     * @param limit   the most rows to convert
+     * @return the id of the last row looked at, or -1 if there was none left
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized long convertJsonCommands(long afterId, int limit) throws SQLException {
+        if (!backend.supportsLegacyFormats()) {
+            return -1;
+        }
+        return inTransaction(() -> {
+            Map<Long, byte[]> converted = new LinkedHashMap<>();
+            long lastId = -1;
+            PreparedStatement select = prepare(SELECT_JSON_COMMANDS);
+            select.setLong(1, afterId);
+            select.setInt(2, limit);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    lastId = rs.getLong("id");
+                    try {
+                        converted.put(lastId, CommandStorageCodec.encode(CommandStorageCodec.decode(rs.getBytes("command")), compressThreshold));
+                    } catch (JsonProcessingException e) {
+                        offlineCommands.getDebugLogger().log(Level.WARNING, String.format("Failed to convert command row %d, leaving it as JSON: %s", lastId, e.getMessage()));
+                    }
+                }
+            }
+            PreparedStatement update = prepare(UPDATE_COMMAND);
+            for (Map.Entry<Long, byte[]> row : converted.entrySet()) {
+                update.setBytes(1, row.getValue());
+                update.setLong(2, row.getKey());
+                update.addBatch();
+            }
+            if (!converted.isEmpty()) {
+                update.executeBatch();
+            }
+            return lastId;
+        });
+    }
+
+    /**
+     * Adds the columns introduced since the database was created: the claim state of every command,
+     * which starts out pending, and the lease of every user, which starts out free.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    private void addMissingColumns() throws SQLException {
+        addColumnIfMissing("CommandStorage", "state", "INTEGER NOT NULL DEFAULT " + STATE_PENDING);
+        addColumnIfMissing("UserStorage", "lease_owner", "TEXT");
+        addColumnIfMissing("UserStorage", "lease_expires", "INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private void addColumnIfMissing(String table, String column, String definition) throws SQLException {
+        try (ResultSet rs = getConnection().getMetaData().getColumns(null, null, table, null)) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return;
+                }
+            }
+        }
+        try (Statement stmt = getConnection().createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    /**
+     * Converts rows written by older versions, which kept the whole command queue as one JSON array,
+     * into one CommandStorage row per command. Runs in a single transaction and is a no-op once every
+     * legacy column has been cleared.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    private void migrateLegacyCommands() throws SQLException {
+        Map<String, String> legacyRows = new LinkedHashMap<>();
+        try (Statement stmt = getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_LEGACY_USERS)) {
+            while (rs.next()) {
+                legacyRows.put(rs.getString("uuid"), rs.getString("commands"));
+            }
+        }
+        if (legacyRows.isEmpty()) {
+            return;
+        }
+
+        int migrated = inTransaction(() -> {
+            int count = 0;
+            for (Map.Entry<String, String> row : legacyRows.entrySet()) {
+                UUID uuid = UUID.fromString(row.getKey());
+                String commandsJson = row.getValue();
+                if (!commandsJson.isEmpty()) {
+                    for (CommandStorage command : CommandStorageCodec.readCommandList(commandsJson)) {
+                        insertCommand(uuid, withIdentifier(command));
+                        count++;
+                    }
+                }
+                PreparedStatement clear = prepare(CLEAR_LEGACY_COMMANDS);
+                clear.setString(1, uuid.toString());
+                clear.executeUpdate();
+                deleteUserIfEmpty(uuid);
+            }
+            return count;
+        });
+        offlineCommands.getDebugLogger().log(Level.INFO, String.format("Migrated %d commands from %d legacy users into the CommandStorage table.", migrated, legacyRows.size()));
+    }
+
+    /**
+     * Lower-cases the identifiers stored by versions that kept them as entered. The update has to scan the whole
+     * table, as the identifier index cannot answer it, so it only runs once: afterwards the database is marked
+     * through its {@code user_version}, and every identifier is lower-cased when it is written.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    private void normalizeIdentifiers() throws SQLException {
+        try (Statement stmt = getConnection().createStatement()) {
+            try (ResultSet rs = stmt.executeQuery(SELECT_USER_VERSION)) {
+                if (rs.next() && rs.getInt(1) >= IDENTIFIERS_NORMALIZED_VERSION) {
+                    return;
+                }
+            }
+            int normalized = stmt.executeUpdate(NORMALIZE_IDENTIFIERS);
+            stmt.execute(SET_USER_VERSION);
+            if (normalized > 0) {
+                offlineCommands.getDebugLogger().log(Level.INFO, String.format("Lower-cased the identifiers of %d stored commands.", normalized));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the shared connection to the database. The connection is kept open for the
+     * lifetime of this manager; a new one is only established if it was closed or never opened.
+     * This is the only connection that writes.
+     *
+     * @return a connection to the database
      * @throws SQLException if a database access error occurs
      */
     private Connection getConnection() throws SQLException {
         if (connection == null || connection.isClosed()) {
-            connection = DriverManager.getConnection(url);
+            if (statementCache != null) {
+                statementCache.close();
+            }
+            connection = backend.openConnection();
+            statementCache = new PreparedStatementCache(connection);
+            connectionOpens.incrementAndGet();
         }
         return connection;
     }
 
-    public void closeConnection() {
+    /**
+     * Returns a cached prepared statement for the given SQL on the shared connection.
+     *
+     * @param sql the SQL string
+     * @return the prepared statement
+     * @throws SQLException if a database access error occurs
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        getConnection();
+        return statementCache.prepare(sql);
+    }
+
+    /**
+     * Runs a read on one of the read-only connections, or on the writer connection if no read
+     * connections are configured or the pool has not been opened yet.
+     *
+     * @param call the read to run
+     * @param <T>  the type of the result
+     * @return the result of the read
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    private <T> T read(ReadConnectionPool.ReadCall<T> call) throws SQLException, JsonProcessingException {
+        ReadConnectionPool pool = readPool;
+        if (pool != null) {
+            return pool.withConnection(call);
+        }
+        synchronized (this) {
+            getConnection();
+            return call.call(statementCache);
+        }
+    }
+
+    /**
+     * Runs the given work inside a single transaction on the shared connection,
+     * rolling back if it fails.
+     *
+     * @param work the work to run
+     * @param <T>  the type of the result
+     * @return the result of the work
+     * @throws SQLException if a database access error occurs
+     */
+    private <T> T inTransaction(StorageCall<T> work) throws SQLException {
+        Connection conn = getConnection();
+        conn.setAutoCommit(false);
+        try {
+            T result = work.call();
+            conn.commit();
+            return result;
+        } catch (SQLException | JsonProcessingException | RuntimeException e) {
+            conn.rollback();
+            if (e instanceof SQLException) {
+                throw (SQLException) e;
+            }
+            throw new SQLException("Transaction failed: " + e.getMessage(), e);
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Closes all cached statements, the read-only connections and the shared connection.
+     */
+    public synchronized void closeConnection() {
+        offlineCommands.getDebugLogger().log(Level.INFO, String.format("Closing %s database; connections opened: %d, statements prepared: %d, statements reused: %d",
+                backend.getName(), getConnectionOpens(), getStatementsPrepared(), getStatementReuses()));
+        if (readPool != null) {
+            readPool.close();
+            readPool = null;
+        }
+        if (statementCache != null) {
+            statementCache.close();
+            statementCache = null;
+        }
         if (connection != null) {
             try {
                 connection.close();
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connection = null;
         }
     }
 
+    /**
+     * @return the database engine this manager stores everything in
+     */
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Returns how many times a physical connection to the database has been opened.
+     *
+     * @return the number of connection opens
+     */
+    public long getConnectionOpens() {
+        return connectionOpens.get();
+    }
+
+    /**
+     * Returns how many times a cached prepared statement has been reused instead of re-prepared.
+     *
+     * @return the number of statement reuses on the current connection
+     */
+    public synchronized long getStatementReuses() {
+        return (statementCache == null ? 0 : statementCache.getReused()) + (readPool == null ? 0 : readPool.getReused());
+    }
+
+    /**
+     * Returns how many statements have been prepared on the current connection.
+     *
+     * @return the number of prepared statements
+     */
+    public synchronized long getStatementsPrepared() {
+        return (statementCache == null ? 0 : statementCache.getPrepared()) + (readPool == null ? 0 : readPool.getPrepared());
+    }
+
     /**
      * Retrieves a UserStorage object for the specified UUID.
      *
@@ -72,124 +447,820 @@ public class StorageManager {
      * @throws JsonProcessingException if an error occurs while processing JSON
      */
     public UserStorage getUser(UUID uuid) throws SQLException, JsonProcessingException {
-        String sql = "SELECT uuid, commands, username FROM UserStorage WHERE uuid = ?";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        return read(statements -> {
+            PreparedStatement pstmt = statements.prepare(SELECT_USER);
             pstmt.setString(1, uuid.toString());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                String commandsJson = rs.getString("commands");
-                List<CommandStorage> commands = new ArrayList<>();
-                if (commandsJson != null && !commandsJson.isEmpty()) {
-                    List<Map<String, Object>> rawList = objectMapper.readValue(commandsJson, new TypeReference<List<Map<String, Object>>>() {
-                    });
-                    commands = rawList.stream().map(CommandStorage::deserialize).collect(Collectors.toList());
-                }
-
-                commands.forEach(command -> {
-                    if (command.getIdentifier() == null || command.getIdentifier().isEmpty()) {
-                        command.setIdentifier(UUID.randomUUID().toString().split("-")[0]);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                List<UserStorage> users = readUsers(rs);
+                return users.isEmpty() ? null : users.get(0);
+            }
+        });
+    }
+
+    /**
+     * Adds a single command to a user's queue, creating the user if they do not exist yet.
+     * Only the user row and the new command row are written.
+     *
+     * @param uuid     the UUID of the user
+     * @param username the current username of the user
+     * @param command  the command to add
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void addCommand(UUID uuid, String username, CommandStorage command) throws SQLException {
+        inTransaction(() -> {
+            upsertUser(uuid, username);
+            insertCommand(uuid, command);
+            return null;
+        });
+    }
+
+    /**
+     * Removes the commands with the given identifiers from a user's queue.
+     * The user is removed as well once they have no commands left.
+     *
+     * @param uuid        the UUID of the user
+     * @param identifiers the identifiers of the commands to remove
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void removeCommands(UUID uuid, Collection<String> identifiers) throws SQLException {
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        inTransaction(() -> {
+            PreparedStatement pstmt = prepare(DELETE_COMMAND);
+            for (String identifier : identifiers) {
+                pstmt.setString(1, uuid.toString());
+                pstmt.setString(2, normalizeIdentifier(identifier));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            deleteUserIfEmpty(uuid);
+            return null;
+        });
+    }
+
+    /**
+     * Claims the given pending commands of a user in one transaction, before they are dispatched.
+     * A command that is already claimed, or no longer stored, is not claimed again, so every stored
+     * command is handed out at most once.
+     *
+     * @param uuid        the UUID of the user
+     * @param identifiers the identifiers of the commands to claim
+     * @return the stored identifiers of the commands that were claimed by this call
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized Set<String> claimCommands(UUID uuid, Collection<String> identifiers) throws SQLException {
+        if (identifiers.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return inTransaction(() -> {
+            List<String> keys = new ArrayList<>(identifiers.size());
+            PreparedStatement pstmt = prepare(CLAIM_COMMAND);
+            for (String identifier : identifiers) {
+                String key = normalizeIdentifier(identifier);
+                keys.add(key);
+                pstmt.setString(1, uuid.toString());
+                pstmt.setString(2, key);
+                pstmt.addBatch();
+            }
+            int[] counts = pstmt.executeBatch();
+            Set<String> claimed = new HashSet<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    claimed.add(keys.get(i));
+                }
+            }
+            return claimed;
+        });
+    }
+
+    /**
+     * Puts claimed commands that were never dispatched back into the pending state, so they run on the next join.
+     * Commands that have been executed and deleted in the meantime are left alone.
+     *
+     * @param uuid        the UUID of the user
+     * @param identifiers the identifiers of the commands to release
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void releaseClaims(UUID uuid, Collection<String> identifiers) throws SQLException {
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        inTransaction(() -> {
+            PreparedStatement pstmt = prepare(RELEASE_CLAIM);
+            for (String identifier : identifiers) {
+                pstmt.setString(1, uuid.toString());
+                pstmt.setString(2, normalizeIdentifier(identifier));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            return null;
+        });
+    }
+
+    /**
+     * Settles every command that is still claimed from before the last shutdown or crash, for which it is
+     * unknown whether it ran. They are either put back to be run again or deleted. Commands of users leased
+     * by a server sharing the database are left to that server.
+     *
+     * @param retry true to run them again on the next join, false to discard them
+     * @return the number of commands that were settled
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized int recoverClaims(boolean retry) throws SQLException {
+        return inTransaction(() -> {
+            PreparedStatement pstmt = prepare(retry ? RELEASE_UNLEASED_CLAIMS : DELETE_UNLEASED_CLAIMED);
+            pstmt.setLong(1, System.currentTimeMillis());
+            int settled = pstmt.executeUpdate();
+            if (!retry) {
+                try (Statement stmt = getConnection().createStatement()) {
+                    stmt.executeUpdate(DELETE_EMPTY_USERS);
+                }
+            }
+            return settled;
+        });
+    }
+
+    /**
+     * Takes the lease on a user's queue, which lets only one server sharing the database run their commands.
+     * The lease is granted if it is free, expired or already held by the given owner. Commands left claimed
+     * by another owner, whose lease has ended without their execution being confirmed, are settled first.
+     *
+     * @param uuid    the UUID of the user
+     * @param owner   the server taking the lease
+     * @param now     the current time in epoch milliseconds
+     * @param expires when the lease ends unless it is renewed, in epoch milliseconds
+     * @param retry   true to run commands left claimed by another owner again, false to discard them
+     * @return whether the lease was taken, is held by another server, or the user has no stored commands
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized LeaseResult acquireLease(UUID uuid, String owner, long now, long expires, boolean retry) throws SQLException {
+        return inTransaction(() -> {
+            PreparedStatement select = prepare(SELECT_LEASE_OWNER);
+            select.setString(1, uuid.toString());
+            String previousOwner;
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    return LeaseResult.NOT_STORED;
+                }
+                previousOwner = rs.getString("lease_owner");
+            }
+
+            PreparedStatement acquire = prepare(ACQUIRE_LEASE);
+            acquire.setString(1, owner);
+            acquire.setLong(2, expires);
+            acquire.setString(3, uuid.toString());
+            acquire.setString(4, owner);
+            acquire.setLong(5, now);
+            if (acquire.executeUpdate() == 0) {
+                return LeaseResult.HELD_ELSEWHERE;
+            }
+
+            if (!owner.equals(previousOwner)) {
+                PreparedStatement settle = prepare(retry ? RELEASE_USER_CLAIMS : DELETE_USER_CLAIMED);
+                settle.setString(1, uuid.toString());
+                int settled = settle.executeUpdate();
+                if (settled > 0) {
+                    offlineCommands.getDebugLogger().log(Level.INFO, String.format("Took over %s from %s; %d unconfirmed commands were %s.",
+                            uuid, previousOwner, settled, retry ? "queued again" : "discarded"));
+                }
+            }
+            return LeaseResult.ACQUIRED;
+        });
+    }
+
+    /**
+     * Extends the leases an owner holds, in one transaction.
+     *
+     * @param uuids   the users whose leases to extend
+     * @param owner   the server holding the leases
+     * @param expires the new end of the leases, in epoch milliseconds
+     * @return the users whose lease the owner no longer holds, because it was taken over or the user is gone
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized Set<UUID> renewLeases(List<UUID> uuids, String owner, long expires) throws SQLException {
+        if (uuids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return inTransaction(() -> {
+            PreparedStatement pstmt = prepare(RENEW_LEASE);
+            for (UUID uuid : uuids) {
+                pstmt.setLong(1, expires);
+                pstmt.setString(2, uuid.toString());
+                pstmt.setString(3, owner);
+                pstmt.addBatch();
+            }
+            int[] counts = pstmt.executeBatch();
+            Set<UUID> lost = new HashSet<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    lost.add(uuids.get(i));
+                }
+            }
+            return lost;
+        });
+    }
+
+    /**
+     * Gives up the leases an owner holds, in one transaction. Leases held by someone else are left alone.
+     *
+     * @param uuids the users whose leases to give up
+     * @param owner the server holding the leases
+     * @throws SQLException if a database access error occurs
+     */
+    public synchronized void releaseLeases(Collection<UUID> uuids, String owner) throws SQLException {
+        if (uuids.isEmpty()) {
+            return;
+        }
+        inTransaction(() -> {
+            PreparedStatement pstmt = prepare(RELEASE_LEASE);
+            for (UUID uuid : uuids) {
+                pstmt.setString(1, uuid.toString());
+                pstmt.setString(2, owner);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given reads while no write can be committed through this storage manager. Listeners are told
+     * about committed writes before the lock is released, so the reads see exactly the changes that have
+     * been reported so far and every later change is reported after the call returns.
+     *
+     * @param call the reads to run
+     * @param <T>  the type of the result
+     * @return the result of the call
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public synchronized <T> T readWithWritesHeld(StorageCall<T> call) throws SQLException, JsonProcessingException {
+        return call.call();
+    }
+
+    /**
+     * Persists a batch of coalesced writes in a single transaction and, once it has been committed,
+     * reports what actually changed to the given listener.
+     *
+     * @param writes   the pending writes, at most one per user
+     * @param listener the listener to notify after the commit
+     * @throws SQLException if a database access error occurs; nothing from the batch is persisted in that case
+     */
+    synchronized void applyWrites(Collection<PendingWrite> writes, StorageListener listener) throws SQLException {
+        List<Runnable> events = inTransaction(() -> {
+            List<Runnable> committed = new ArrayList<>();
+            PreparedStatement deleteCommand = prepare(DELETE_COMMAND);
+            for (PendingWrite write : writes) {
+                UUID uuid = write.getUuid();
+                List<CommandStorage> removed = new ArrayList<>();
+                if (write.isRemoveAll() || !write.getRemovedIdentifiers().isEmpty()) {
+                    Map<String, CommandStorage> existing = selectCommandSummaries(uuid);
+                    if (write.isRemoveAll()) {
+                        removed.addAll(existing.values());
+                        deleteUserCommands(uuid);
+                    } else {
+                        for (String identifier : write.getRemovedIdentifiers()) {
+                            CommandStorage summary = existing.get(identifier);
+                            if (summary == null) {
+                                continue;
+                            }
+                            removed.add(summary);
+                            deleteCommand.setString(1, uuid.toString());
+                            deleteCommand.setString(2, identifier);
+                            deleteCommand.addBatch();
+                        }
+                        deleteCommand.executeBatch();
+                    }
+                }
+
+                if (write.getAddedCommands().isEmpty()) {
+                    boolean userRemoved = deleteUserIfEmpty(uuid) > 0;
+                    if (!removed.isEmpty() || userRemoved) {
+                        committed.add(() -> listener.onCommandsRemoved(uuid, removed, userRemoved));
                     }
-                });
+                    continue;
+                }
+                boolean userCreated = upsertUser(uuid, write.getUsername());
+                List<CommandStorage> added = new ArrayList<>(write.getAddedCommands());
+                for (CommandStorage command : added) {
+                    insertCommand(uuid, command);
+                }
+                if (!removed.isEmpty()) {
+                    committed.add(() -> listener.onCommandsRemoved(uuid, removed, false));
+                }
+                committed.add(() -> listener.onCommandsAdded(uuid, write.getUsername(), added, userCreated));
+            }
+            return committed;
+        });
+        events.forEach(Runnable::run);
+    }
 
-                return UserStorage.builder()
-                        .uuid(UUID.fromString(rs.getString("uuid")))
-                        .username(rs.getString("username"))
-                        .commands(commands)
-                        .build();
+    /**
+     * Loads the identifier, executor and recurring flag of every command a user has, without decoding the commands.
+     *
+     * @param uuid the UUID of the user
+     * @return the summaries keyed by stored identifier
+     * @throws SQLException if a database access error occurs
+     */
+    private Map<String, CommandStorage> selectCommandSummaries(UUID uuid) throws SQLException {
+        Map<String, CommandStorage> summaries = new LinkedHashMap<>();
+        PreparedStatement pstmt = prepare(SELECT_COMMAND_SUMMARIES);
+        pstmt.setString(1, uuid.toString());
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                String identifier = rs.getString("identifier");
+                summaries.put(identifier, CommandStorage.builder()
+                        .identifier(identifier)
+                        .executor(CommandStorage.Executor.getEnum(rs.getString("executor")))
+                        .recurring(rs.getBoolean("recurring"))
+                        .build());
             }
         }
-        return null;
+        return summaries;
     }
 
     /**
-     * Adds or updates a user in the database.
+     * Calls the given consumer with the number of stored commands for each combination of executor and
+     * recurring flag. Answered from the indexed columns with a single aggregate query.
+     *
+     * @param consumer the consumer to call for each group
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public void forEachCommandCount(CommandCountConsumer consumer) throws SQLException, JsonProcessingException {
+        read(statements -> {
+            try (ResultSet rs = statements.prepare(COUNT_COMMANDS_BY_TYPE).executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(CommandStorage.Executor.getEnum(rs.getString("executor")), rs.getBoolean("recurring"), rs.getLong("amount"));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Calls the given consumer with the UUID of every stored user, read from the primary key alone.
+     *
+     * @param consumer the consumer to call for each user
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public void forEachUserId(Consumer<UUID> consumer) throws SQLException, JsonProcessingException {
+        read(statements -> {
+            try (ResultSet rs = statements.prepare(SELECT_USER_IDS).executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(UUID.fromString(rs.getString("uuid")));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Calls the given consumer with the owner and identifier of every stored command.
+     * Only indexed key columns are read; no command is decoded.
+     *
+     * @param consumer the consumer to call for each command
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public void forEachCommandKey(CommandKeyConsumer consumer) throws SQLException, JsonProcessingException {
+        read(statements -> {
+            try (ResultSet rs = statements.prepare(SELECT_COMMAND_KEYS).executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(UUID.fromString(rs.getString("uuid")), rs.getString("username"), rs.getString("identifier"));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Adds or updates a user in the database, replacing their whole command queue.
      *
      * @param userStorage the UserStorage object to add or update
      * @throws SQLException            if a database access error occurs
      * @throws JsonProcessingException if an error occurs while processing JSON
      */
-    public void addOrUpdateUser(UserStorage userStorage) throws SQLException, JsonProcessingException {
-        String sql = "INSERT OR REPLACE INTO UserStorage(uuid, username, commands) VALUES(?, ?, ?)";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, userStorage.getUuid().toString());
-            pstmt.setString(2, userStorage.getUsername());
-            List<Map<String, Object>> serializedCommands = userStorage.getCommands() == null
-                    ? new ArrayList<>()
-                    : userStorage.getCommands().stream().map(CommandStorage::serialize).collect(Collectors.toList());
-            pstmt.setString(3, objectMapper.writeValueAsString(serializedCommands));
-            pstmt.executeUpdate();
-        }
+    public synchronized void addOrUpdateUser(UserStorage userStorage) throws SQLException, JsonProcessingException {
+        importUsers(Collections.singletonList(userStorage));
     }
 
-    public CommandStorage getCommandFromDatabase(String commandIdentifier) throws SQLException, JsonProcessingException {
-        String sql = "SELECT commands FROM UserStorage";
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                String commandsJson = rs.getString("commands");
-                if (commandsJson == null || commandsJson.isEmpty()) continue;
-
-                List<Map<String, Object>> rawList = objectMapper.readValue(commandsJson, new TypeReference<List<Map<String, Object>>>() {
-                });
-                for (Map<String, Object> rawCmd : rawList) {
-                    CommandStorage command = CommandStorage.deserialize(rawCmd);
-                    if (command.getIdentifier() != null && command.getIdentifier().equalsIgnoreCase(commandIdentifier)) {
-                        return command;
+    /**
+     * Adds or updates many users in one transaction, replacing the whole command queue of each.
+     * Commands are stored as pending and users as unleased, whatever their state was where they came from.
+     *
+     * @param users the users to store
+     * @throws SQLException            if a database access error occurs; none of the users are stored in that case
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public synchronized void importUsers(Collection<UserStorage> users) throws SQLException, JsonProcessingException {
+        inTransaction(() -> {
+            for (UserStorage userStorage : users) {
+                UUID uuid = userStorage.getUuid();
+                upsertUser(uuid, userStorage.getUsername());
+                deleteUserCommands(uuid);
+                if (userStorage.getCommands() != null) {
+                    for (CommandStorage command : userStorage.getCommands()) {
+                        insertCommand(uuid, command);
                     }
                 }
             }
+            return null;
+        });
+    }
+
+    /**
+     * Copies every user, with their commands, into another database a page at a time, each page in its own
+     * transaction on the target. Only one page is held in memory.
+     * <p>
+     * The target must not hold any users, so that commands already delivered from an older copy of the data are
+     * never brought back. While the copy runs the target is marked as holding an unfinished copy; a target still
+     * marked from an interrupted run is emptied and copied into again, so the copy can simply be run again.
+     * </p>
+     *
+     * @param target   the storage to copy into, which must already be initialized
+     * @param pageSize the number of users copied per transaction
+     * @return the number of users copied
+     * @throws SQLException            if a database access error occurs, or the target already holds users
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public int copyTo(StorageManager target, int pageSize) throws SQLException, JsonProcessingException {
+        target.beginCopy(backend.getName());
+        int copied = 0;
+        String cursor = "";
+        List<UserStorage> page;
+        while (!(page = getUsersAfter(cursor, pageSize)).isEmpty()) {
+            target.importUsers(page);
+            copied += page.size();
+            cursor = page.get(page.size() - 1).getUuid().toString();
         }
-        return null;
+        target.finishCopy();
+        return copied;
+    }
+
+    /**
+     * Marks this database as the target of an unfinished copy, in one transaction with emptying it if it is still
+     * marked from an interrupted one.
+     *
+     * @param source the name of the backend copied from
+     * @throws SQLException if a database access error occurs, or the database holds users without being marked
+     */
+    private synchronized void beginCopy(String source) throws SQLException {
+        inTransaction(() -> {
+            String unfinished;
+            try (ResultSet rs = prepare(SELECT_COPY_SOURCE).executeQuery()) {
+                unfinished = rs.next() ? rs.getString("source") : null;
+            }
+            if (unfinished == null) {
+                try (ResultSet rs = prepare(COUNT_USERS).executeQuery()) {
+                    int users = rs.next() ? rs.getInt(1) : 0;
+                    if (users > 0) {
+                        throw new SQLException(String.format("The %s database already holds %d users; move its file away before copying into it.",
+                                backend.getName(), users));
+                    }
+                }
+            } else {
+                offlineCommands.getDebugLogger().log(Level.INFO, String.format("The %s database holds an unfinished copy from %s; starting over.",
+                        backend.getName(), unfinished));
+            }
+            try (Statement stmt = getConnection().createStatement()) {
+                stmt.executeUpdate(DELETE_ALL_COMMANDS);
+                stmt.executeUpdate(DELETE_ALL_USERS);
+                stmt.executeUpdate(DELETE_COPY_SOURCE);
+            }
+            PreparedStatement mark = prepare(INSERT_COPY_SOURCE);
+            mark.setString(1, source);
+            mark.setLong(2, System.currentTimeMillis());
+            mark.executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * Clears the mark set by {@link #beginCopy(String)} once every page has been copied.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    private synchronized void finishCopy() throws SQLException {
+        prepare(DELETE_COPY_SOURCE).executeUpdate();
+    }
+
+    /**
+     * Looks up a single command by its identifier through the identifier index.
+     * Identifiers are matched case-insensitively.
+     *
+     * @param commandIdentifier the identifier of the command
+     * @return the command, or null if no command has this identifier
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public CommandStorage getCommandFromDatabase(String commandIdentifier) throws SQLException, JsonProcessingException {
+        return read(statements -> {
+            PreparedStatement pstmt = statements.prepare(SELECT_COMMAND);
+            pstmt.setString(1, normalizeIdentifier(commandIdentifier));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? readCommand(rs.getBytes("command")) : null;
+            }
+        });
     }
 
 
     /**
-     * Removes a user from the database.
+     * Removes a user and all of their commands from the database.
      *
      * @param uuid the UUID of the user to remove
      * @throws SQLException if a database access error occurs
      */
-    public void removeUser(UUID uuid) throws SQLException {
-        String sql = "DELETE FROM UserStorage WHERE uuid = ?";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    public synchronized void removeUser(UUID uuid) throws SQLException {
+        inTransaction(() -> {
+            deleteUserCommands(uuid);
+            PreparedStatement pstmt = prepare(DELETE_USER);
             pstmt.setString(1, uuid.toString());
             pstmt.executeUpdate();
-        }
+            return null;
+        });
     }
 
     /**
      * Retrieves a list of all UserStorage objects from the database.
+     * Holds every user in memory at once; prefer {@link #forEachUser(Consumer, boolean)} for large databases.
      *
      * @return a list of UserStorage objects
      * @throws SQLException            if a database access error occurs
      * @throws JsonProcessingException if an error occurs while processing JSON
      */
     public List<UserStorage> getUserStorageList() throws SQLException, JsonProcessingException {
+        List<UserStorage> users = new ArrayList<>();
+        forEachUser(users::add, false);
+        return users;
+    }
+
+    /**
+     * Hands every user, with their commands, to the consumer in UUID order while the rows are still being
+     * fetched, so only the users in flight are held in memory.
+     * <p>
+     * With {@code parallel} set, the stored commands of a window of users are decoded
+     * on the common fork/join pool while the cursor keeps reading. The consumer is still called on the calling
+     * thread and in UUID order.
+     * </p>
+     *
+     * @param consumer called once per user
+     * @param parallel whether to decode on the common fork/join pool
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public void forEachUser(Consumer<UserStorage> consumer, boolean parallel) throws SQLException, JsonProcessingException {
+        read(statements -> {
+            try (ResultSet rs = statements.prepare(SELECT_ALL_USERS).executeQuery()) {
+                readUsers(rs, consumer, parallel);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Counts the users that have at least one stored command.
+     *
+     * @return the number of users
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public int countUsers() throws SQLException, JsonProcessingException {
+        return read(statements -> {
+            try (ResultSet rs = statements.prepare(COUNT_USERS).executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    /**
+     * Returns the UUID of the user at the given position in UUID order, counted from the first user after the
+     * given key. Only the primary key index is read, but every skipped key is still visited, so the cost grows
+     * with the offset.
+     *
+     * @param afterKey the key to count from, or an empty string to count from the first user
+     * @param offset   the zero-based position after that key
+     * @return the UUID as stored, or null if there are not that many users
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public String getUserKeyAfter(String afterKey, int offset) throws SQLException, JsonProcessingException {
+        return read(statements -> {
+            PreparedStatement pstmt = statements.prepare(SELECT_USER_KEY_AFTER);
+            pstmt.setString(1, afterKey);
+            pstmt.setInt(2, offset);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+    }
+
+    /**
+     * Retrieves up to {@code limit} users, with their commands, whose UUID sorts after the given key.
+     *
+     * @param afterKey the UUID of the last user on the previous page, or an empty string for the first page
+     * @param limit    the maximum number of users to return
+     * @return the users in UUID order
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    public List<UserStorage> getUsersAfter(String afterKey, int limit) throws SQLException, JsonProcessingException {
+        return read(statements -> {
+            PreparedStatement pstmt = statements.prepare(SELECT_USER_PAGE);
+            pstmt.setString(1, afterKey);
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return readUsers(rs);
+            }
+        });
+    }
+
+    /**
+     * Groups rows of a user/command join, ordered by user, into UserStorage objects.
+     *
+     * @param rs a result set with uuid, username and command columns
+     * @return the users in result set order
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    private List<UserStorage> readUsers(ResultSet rs) throws SQLException, JsonProcessingException {
         List<UserStorage> userStorageList = new ArrayList<>();
-        String sql = "SELECT uuid, username, commands FROM UserStorage";
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        readUsers(rs, userStorageList::add, false);
+        return userStorageList;
+    }
+
+    /**
+     * Groups rows of a user/command join, ordered by user, and hands each user to the consumer as soon as
+     * their last row has been read.
+     *
+     * @param rs       a result set with uuid, username and command columns
+     * @param consumer called once per user, in result set order, on the calling thread
+     * @param parallel whether to decode commands on the common fork/join pool
+     * @throws SQLException            if a database access error occurs
+     * @throws JsonProcessingException if an error occurs while processing JSON
+     */
+    private void readUsers(ResultSet rs, Consumer<UserStorage> consumer, boolean parallel) throws SQLException, JsonProcessingException {
+        Deque<ForkJoinTask<UserStorage>> window = new ArrayDeque<>();
+        try {
+            RawUser current = null;
             while (rs.next()) {
-                String commandsJson = rs.getString("commands");
-                List<CommandStorage> commands = new ArrayList<>();
-                if (commandsJson != null && !commandsJson.isEmpty()) {
-                    List<Map<String, Object>> rawList = objectMapper.readValue(commandsJson, new TypeReference<List<Map<String, Object>>>() {
-                    });
-                    commands = rawList.stream().map(CommandStorage::deserialize).collect(Collectors.toList());
+                String uuid = rs.getString("uuid");
+                if (current == null || !current.uuid.equals(uuid)) {
+                    if (current != null) {
+                        emitUser(current, consumer, parallel ? window : null);
+                    }
+                    current = new RawUser(uuid, rs.getString("username"));
+                }
+                byte[] command = rs.getBytes("command");
+                if (command != null) {
+                    current.commands.add(command);
                 }
-                UserStorage userStorage = UserStorage.builder()
-                        .uuid(UUID.fromString(rs.getString("uuid")))
-                        .username(rs.getString("username"))
-                        .commands(commands)
-                        .build();
-                userStorageList.add(userStorage);
+            }
+            if (current != null) {
+                emitUser(current, consumer, parallel ? window : null);
+            }
+            while (!window.isEmpty()) {
+                consumer.accept(joinDecoded(window.pollFirst()));
+            }
+        } finally {
+            for (ForkJoinTask<UserStorage> pending : window) {
+                pending.cancel(false);
             }
         }
-        return userStorageList;
+    }
+
+    /**
+     * Decodes a user right away, or queues the decoding and hands over the oldest user once the window is full.
+     *
+     * @param window the users being decoded in parallel, or null to decode on the calling thread
+     */
+    private void emitUser(RawUser raw, Consumer<UserStorage> consumer, Deque<ForkJoinTask<UserStorage>> window) throws JsonProcessingException {
+        if (window == null) {
+            consumer.accept(decodeUser(raw));
+            return;
+        }
+        window.addLast(ForkJoinPool.commonPool().submit(() -> decodeUser(raw)));
+        if (window.size() >= PARALLEL_DECODE_WINDOW) {
+            consumer.accept(joinDecoded(window.pollFirst()));
+        }
+    }
+
+    private static UserStorage joinDecoded(ForkJoinTask<UserStorage> task) throws JsonProcessingException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof JsonProcessingException) {
+                throw (JsonProcessingException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private UserStorage decodeUser(RawUser raw) throws JsonProcessingException {
+        List<CommandStorage> commands = new ArrayList<>(raw.commands.size());
+        for (byte[] command : raw.commands) {
+            commands.add(readCommand(command));
+        }
+        return UserStorage.builder()
+                .uuid(UUID.fromString(raw.uuid))
+                .username(raw.username)
+                .commands(commands)
+                .build();
+    }
+
+    private CommandStorage readCommand(byte[] command) throws JsonProcessingException {
+        return withIdentifier(CommandStorageCodec.decode(command));
+    }
+
+    private static CommandStorage withIdentifier(CommandStorage command) {
+        if (command.getIdentifier() == null || command.getIdentifier().isEmpty()) {
+            command.setIdentifier(UUID.randomUUID().toString().split("-")[0]);
+        }
+        return command;
+    }
+
+    /**
+     * Identifiers are stored lower-cased so that case-insensitive lookups can use the plain identifier index.
+     *
+     * @param identifier the identifier as entered or generated
+     * @return the identifier in its stored form
+     */
+    private static String normalizeIdentifier(String identifier) {
+        return identifier.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Updates the username of the user, or inserts the user if they do not exist yet.
+     * The update comes first so that it takes the write lock before the existence check is acted upon.
+     *
+     * @return true if the user did not exist before
+     */
+    private boolean upsertUser(UUID uuid, String username) throws SQLException {
+        PreparedStatement update = prepare(UPDATE_USERNAME);
+        update.setString(1, username);
+        update.setString(2, uuid.toString());
+        if (update.executeUpdate() > 0) {
+            return false;
+        }
+        PreparedStatement insert = prepare(INSERT_USER);
+        insert.setString(1, uuid.toString());
+        insert.setString(2, username);
+        insert.executeUpdate();
+        return true;
+    }
+
+    private void insertCommand(UUID uuid, CommandStorage command) throws SQLException, JsonProcessingException {
+        PreparedStatement pstmt = prepare(INSERT_COMMAND);
+        pstmt.setString(1, uuid.toString());
+        pstmt.setString(2, normalizeIdentifier(command.getIdentifier()));
+        pstmt.setString(3, command.getExecutor().name());
+        pstmt.setBoolean(4, Boolean.TRUE.equals(command.getRecurring()));
+        pstmt.setBytes(5, CommandStorageCodec.encode(command, compressThreshold));
+        pstmt.executeUpdate();
+    }
+
+    private void deleteUserCommands(UUID uuid) throws SQLException {
+        PreparedStatement pstmt = prepare(DELETE_USER_COMMANDS);
+        pstmt.setString(1, uuid.toString());
+        pstmt.executeUpdate();
+    }
+
+    private int deleteUserIfEmpty(UUID uuid) throws SQLException {
+        PreparedStatement pstmt = prepare(DELETE_USER_IF_EMPTY);
+        pstmt.setString(1, uuid.toString());
+        pstmt.setString(2, uuid.toString());
+        return pstmt.executeUpdate();
+    }
+
+    /**
+     * The undecoded rows of one user, collected while the cursor moves on.
+     */
+    private static class RawUser {
+        private final String uuid;
+        private final String username;
+        private final List<byte[]> commands = new ArrayList<>(4);
+
+        RawUser(String uuid, String username) {
+            this.uuid = uuid;
+            this.username = username;
+        }
+    }
+
+    public enum LeaseResult {
+        ACQUIRED,
+        HELD_ELSEWHERE,
+        NOT_STORED
+    }
+
+    @FunctionalInterface
+    public interface CommandCountConsumer {
+        void accept(CommandStorage.Executor executor, boolean recurring, long count);
+    }
+
+    @FunctionalInterface
+    public interface CommandKeyConsumer {
+        void accept(UUID uuid, String username, String identifier);
     }
 }
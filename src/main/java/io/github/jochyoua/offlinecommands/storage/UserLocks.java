@@ -0,0 +1,34 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out by user UUID.
+ * <p>
+ * Sequences that read and then change one user's queued writes hold that user's lock, so they cannot
+ * interleave with each other while sequences for other users, which almost always map to another lock,
+ * carry on in parallel. Two users sharing a lock only ever wait for each other, they never deadlock,
+ * as long as no caller holds more than one of these locks at a time.
+ * </p>
+ */
+final class UserLocks {
+    private static final int STRIPES = 64;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    UserLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param uuid the UUID of the user
+     * @return the lock guarding the user
+     */
+    ReentrantLock get(UUID uuid) {
+        int hash = uuid.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
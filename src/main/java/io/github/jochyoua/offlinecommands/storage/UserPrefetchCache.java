@@ -0,0 +1,90 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds users that are being loaded ahead of time while their player logs in.
+ * <p>
+ * A prefetch is started during the asynchronous pre-login and taken once by the join handler, so the
+ * database read overlaps with the login instead of following it. Entries are dropped when they are taken,
+ * when the login fails or the player quits, once they are older than {@code expireMillis}, and whenever a
+ * committed write touches the user, so a prefetched user is never older than the last committed change.
+ * </p>
+ */
+public class UserPrefetchCache implements StorageListener {
+    private final AsyncStorageManager storage;
+    private final long expireMillis;
+    private final Map<UUID, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+    public UserPrefetchCache(AsyncStorageManager storage, long expireMillis) {
+        this.storage = storage;
+        this.expireMillis = expireMillis;
+    }
+
+    /**
+     * Starts loading the given user on the storage read threads.
+     *
+     * @param uuid the UUID of the user
+     */
+    public void prefetch(UUID uuid) {
+        long now = System.currentTimeMillis();
+        prefetches.values().removeIf(prefetch -> prefetch.isExpired(now, expireMillis));
+        prefetches.put(uuid, new Prefetch(storage.getUser(uuid), now));
+    }
+
+    /**
+     * Removes and returns the prefetched user, if there is a fresh one.
+     *
+     * @param uuid the UUID of the user
+     * @return the pending or completed load, or null if the user has to be loaded again
+     */
+    public CompletableFuture<UserStorage> take(UUID uuid) {
+        Prefetch prefetch = prefetches.remove(uuid);
+        if (prefetch == null || prefetch.isExpired(System.currentTimeMillis(), expireMillis) || storage.hasPendingWrite(uuid)) {
+            return null;
+        }
+        return prefetch.user;
+    }
+
+    /**
+     * Drops the prefetched user, if any.
+     *
+     * @param uuid the UUID of the user
+     */
+    public void evict(UUID uuid) {
+        prefetches.remove(uuid);
+    }
+
+    @Override
+    public void onDatabaseLoaded(StorageManager storageManager) {
+        prefetches.clear();
+    }
+
+    @Override
+    public void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+        evict(uuid);
+    }
+
+    @Override
+    public void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+        evict(uuid);
+    }
+
+    private static class Prefetch {
+        private final CompletableFuture<UserStorage> user;
+        private final long createdAt;
+
+        Prefetch(CompletableFuture<UserStorage> user, long createdAt) {
+            this.user = user;
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long now, long expireMillis) {
+            return now - createdAt > expireMillis;
+        }
+    }
+}
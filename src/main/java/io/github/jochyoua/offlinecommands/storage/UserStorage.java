@@ -1,12 +1,10 @@
 package io.github.jochyoua.offlinecommands.storage;
 
 
-import io.github.jochyoua.offlinecommands.OfflineCommandsUtils;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.jackson.Jacksonized;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
-import org.bukkit.entity.Player;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -75,24 +73,4 @@ public class UserStorage implements ConfigurationSerializable {
         }
         return null;
     }
-
-    /**
-     * A method that runs all the commands stored in the user storage for a given player.
-     * It takes a player as a parameter, and iterates over the commands list of the user storage to execute each command.
-     * It also uses the OfflineCommandsUtils class to run the command as the player by using the runCommandAsPlayer method.
-     *
-     * @param player a player that represents the target of the commands
-     */
-    public void runAllCommands(Player player) {
-        Iterator<CommandStorage> iterator = this.getCommands().iterator();
-
-        while (iterator.hasNext()) {
-            CommandStorage command = iterator.next();
-            OfflineCommandsUtils.runCommandAsPlayer(player, command);
-
-            if (!command.getRecurring()) {
-                iterator.remove();
-            }
-        }
-    }
 }
@@ -0,0 +1,371 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Keeps recently read users, with their commands, in memory in front of {@link StorageManager}.
+ * <p>
+ * The cache holds at most {@code maximumSize} users and evicts in the style of W-TinyLFU: new users enter a
+ * small LRU window, and a user leaving the window only replaces the least recently used user of the main area
+ * if a {@link FrequencySketch} has seen it more often. Users read again while in the main area are protected
+ * from that comparison until they are the least recently used protected user. This keeps users who are looked
+ * up repeatedly cached while one-off lookups, such as a listing walking every user, pass through.
+ * </p>
+ * <p>
+ * The cache is kept in step with the database from committed adds, removals and consumed commands, and is
+ * cleared whenever the database is (re)loaded. A user read from the database is only cached if no change to
+ * them was committed or left uncommitted while they were being read, so a slow read can never put an outdated
+ * copy back. Lookups never block on the eviction policy, so reads are safe from any thread, Folia regions included.
+ * </p>
+ */
+public class UserStorageCache implements StorageListener {
+    private static final int STRIPES = 64;
+
+    private final int maximumSize;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+    private final Predicate<UUID> uncommitted;
+    private final Map<UUID, Node> data = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private int mainSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the most users to keep, 0 to disable the cache
+     * @param uncommitted tells whether a user has changes that listeners have not been told about yet
+     */
+    public UserStorageCache(int maximumSize, Predicate<UUID> uncommitted) {
+        this.maximumSize = Math.max(0, maximumSize);
+        this.windowMaximum = Math.max(1, this.maximumSize / 100);
+        this.protectedMaximum = (int) ((this.maximumSize - windowMaximum) * 0.8);
+        this.uncommitted = uncommitted;
+        this.sketch = new FrequencySketch(this.maximumSize);
+    }
+
+    /**
+     * Looks up a cached user.
+     *
+     * @param uuid the UUID of the user
+     * @return a copy of the cached user, or null if the user is not cached
+     */
+    public UserStorage get(UUID uuid) {
+        Node node = data.get(uuid);
+        if (node == null) {
+            misses.increment();
+            recordAccess(uuid, null);
+            return null;
+        }
+        hits.increment();
+        recordAccess(uuid, node);
+        return copy(node.value);
+    }
+
+    /**
+     * Returns a token that must be passed to {@link #putLoaded} after reading the user from the database.
+     *
+     * @param uuid the UUID of the user about to be read
+     * @return the current change stamp of the user
+     */
+    public long stamp(UUID uuid) {
+        return stamps.get(stripe(uuid));
+    }
+
+    /**
+     * Caches a user just read from the database, unless they changed since {@link #stamp} was taken
+     * or have changes that are not committed yet.
+     *
+     * @param uuid  the UUID of the user
+     * @param user  the user as read, or null if they have no commands
+     * @param stamp the stamp taken before reading
+     */
+    public void putLoaded(UUID uuid, UserStorage user, long stamp) {
+        if (user == null || maximumSize == 0) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            if (stamps.get(stripe(uuid)) == stamp && !uncommitted.test(uuid)) {
+                put(uuid, copy(user));
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void onDatabaseLoaded(StorageManager storage) {
+        invalidateAll();
+    }
+
+    @Override
+    public void onCommandsAdded(UUID uuid, String username, Collection<CommandStorage> commands, boolean userCreated) {
+        evictionLock.lock();
+        try {
+            stamps.incrementAndGet(stripe(uuid));
+            Node node = data.get(uuid);
+            if (node != null) {
+                List<CommandStorage> updated = new ArrayList<>(node.value.getCommands());
+                updated.addAll(commands);
+                node.value = UserStorage.builder().uuid(uuid).username(username).commands(updated).build();
+            } else if (userCreated && maximumSize > 0) {
+                put(uuid, UserStorage.builder().uuid(uuid).username(username).commands(new ArrayList<>(commands)).build());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void onCommandsRemoved(UUID uuid, Collection<CommandStorage> commands, boolean userRemoved) {
+        evictionLock.lock();
+        try {
+            stamps.incrementAndGet(stripe(uuid));
+            Node node = data.get(uuid);
+            if (node == null) {
+                return;
+            }
+            if (userRemoved) {
+                remove(node);
+                return;
+            }
+            List<CommandStorage> updated = new ArrayList<>(node.value.getCommands());
+            for (CommandStorage removed : commands) {
+                updated.removeIf(command -> command.getIdentifier().equalsIgnoreCase(removed.getIdentifier()));
+            }
+            node.value = UserStorage.builder().uuid(uuid).username(node.value.getUsername()).commands(updated).build();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every cached user and makes reads that are still running discard their result.
+     */
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            for (int i = 0; i < STRIPES; i++) {
+                stamps.incrementAndGet(i);
+            }
+            for (Node node : data.values()) {
+                node.queue = null;
+            }
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            mainSize = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of cached users
+     */
+    public int size() {
+        return data.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the share of lookups answered from the cache, in percent
+     */
+    public long getHitRatePercent() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : hitCount * 100 / total;
+    }
+
+    /**
+     * Records a lookup in the sketch and the access order. Skipped if another thread holds the policy,
+     * which only makes the policy slightly less precise.
+     */
+    private void recordAccess(UUID uuid, Node node) {
+        if (maximumSize == 0 || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(uuid.hashCode());
+            if (node != null && node.queue != null) {
+                onAccess(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (node.queue == window || node.queue == protectedQueue) {
+            node.queue.moveToBack(node);
+            return;
+        }
+        probation.remove(node);
+        protectedQueue.add(node);
+        if (protectedQueue.size > protectedMaximum) {
+            Node demoted = protectedQueue.first();
+            protectedQueue.remove(demoted);
+            probation.add(demoted);
+        }
+    }
+
+    private void put(UUID uuid, UserStorage user) {
+        sketch.increment(uuid.hashCode());
+        Node node = data.get(uuid);
+        if (node != null) {
+            node.value = user;
+            onAccess(node);
+            return;
+        }
+        node = new Node(uuid, user);
+        data.put(uuid, node);
+        window.add(node);
+        evict();
+    }
+
+    /**
+     * Moves users that no longer fit in the window into the main area, each one either replacing the main
+     * area's least recently used user or being evicted itself, whichever the sketch has seen less often.
+     */
+    private void evict() {
+        while (window.size > windowMaximum) {
+            Node candidate = window.first();
+            window.remove(candidate);
+            if (mainSize < maximumSize - windowMaximum) {
+                probation.add(candidate);
+                mainSize++;
+                continue;
+            }
+
+            Node victim = probation.size > 0 ? probation.first() : protectedQueue.first();
+            if (victim != null && sketch.frequency(candidate.uuid.hashCode()) > sketch.frequency(victim.uuid.hashCode())) {
+                remove(victim);
+                probation.add(candidate);
+                mainSize++;
+            } else {
+                data.remove(candidate.uuid, candidate);
+            }
+            evictions.increment();
+        }
+    }
+
+    private void remove(Node node) {
+        if (node.queue != null && node.queue != window) {
+            mainSize--;
+        }
+        if (node.queue != null) {
+            node.queue.remove(node);
+        }
+        data.remove(node.uuid, node);
+    }
+
+    private static int stripe(UUID uuid) {
+        int hash = uuid.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static UserStorage copy(UserStorage user) {
+        return UserStorage.builder()
+                .uuid(user.getUuid())
+                .username(user.getUsername())
+                .commands(new ArrayList<>(user.getCommands()))
+                .build();
+    }
+
+    private static class Node {
+        private final UUID uuid;
+        private volatile UserStorage value;
+        private AccessQueue queue;
+        private Node previous;
+        private Node next;
+
+        Node(UUID uuid, UserStorage value) {
+            this.uuid = uuid;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes in access order, least recently used first. Only used under the eviction lock.
+     */
+    private static class AccessQueue {
+        private Node head;
+        private Node tail;
+        private int size;
+
+        Node first() {
+            return head;
+        }
+
+        void add(Node node) {
+            node.queue = this;
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null) {
+                head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            node.queue = null;
+            size--;
+        }
+
+        void moveToBack(Node node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import java.util.UUID;
+
+/**
+ * A set of UUIDs stored as pairs of primitive longs in open-addressed arrays.
+ * <p>
+ * Each entry costs two longs instead of a UUID object plus a hash map node, and lookups do not allocate.
+ * Collisions are resolved by linear probing and removals shift the following entries back, so no
+ * tombstones accumulate. The all-zero UUID, which marks an empty slot, is tracked separately.
+ * The set is not thread-safe.
+ * </p>
+ */
+class UuidHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] most;
+    private long[] least;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+
+    UuidHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    boolean contains(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            return containsZero;
+        }
+        for (int slot = slot(msb, lsb); ; slot = (slot + 1) & mask) {
+            if (most[slot] == msb && least[slot] == lsb) {
+                return true;
+            }
+            if (most[slot] == 0 && least[slot] == 0) {
+                return false;
+            }
+        }
+    }
+
+    boolean add(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            size += added ? 1 : 0;
+            return added;
+        }
+        if ((size + 1) * 2 > most.length) {
+            resize(most.length << 1);
+        }
+        for (int slot = slot(msb, lsb); ; slot = (slot + 1) & mask) {
+            if (most[slot] == msb && least[slot] == lsb) {
+                return false;
+            }
+            if (most[slot] == 0 && least[slot] == 0) {
+                most[slot] = msb;
+                least[slot] = lsb;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    boolean remove(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            boolean removed = containsZero;
+            containsZero = false;
+            size -= removed ? 1 : 0;
+            return removed;
+        }
+        for (int slot = slot(msb, lsb); ; slot = (slot + 1) & mask) {
+            if (most[slot] == 0 && least[slot] == 0) {
+                return false;
+            }
+            if (most[slot] == msb && least[slot] == lsb) {
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Moves the entries following a removed slot back so that every entry stays reachable from its home slot.
+     */
+    private void shiftBack(int removed) {
+        int gap = removed;
+        for (int slot = (gap + 1) & mask; most[slot] != 0 || least[slot] != 0; slot = (slot + 1) & mask) {
+            int home = slot(most[slot], least[slot]);
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                most[gap] = most[slot];
+                least[gap] = least[slot];
+                gap = slot;
+            }
+        }
+        most[gap] = 0;
+        least[gap] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldMost = most;
+        long[] oldLeast = least;
+        allocate(capacity);
+        for (int i = 0; i < oldMost.length; i++) {
+            if (oldMost[i] != 0 || oldLeast[i] != 0) {
+                int slot = slot(oldMost[i], oldLeast[i]);
+                while (most[slot] != 0 || least[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                most[slot] = oldMost[i];
+                least[slot] = oldLeast[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        most = new long[capacity];
+        least = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long msb, long lsb) {
+        long hash = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+}
@@ -0,0 +1,299 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Buffers writes to {@link StorageManager} and persists them in batched transactions.
+ * <p>
+ * Writes for the same user are coalesced into one {@link PendingWrite}. The queue is flushed when
+ * it holds {@code write-behind-batch-size} users, when the owner's timer fires, before any read that could observe
+ * a pending change, and on shutdown. At most {@code write-behind-max-pending} users are buffered, quarantined ones
+ * included; once that limit is reached the enqueuing thread flushes before adding more, which throttles producers
+ * to the speed of the database. Threads that must not wait for the database use {@link #offer} instead, which
+ * refuses the write once the queue is full.
+ * </p>
+ * <p>
+ * A batch that fails {@value #MAX_BATCH_ATTEMPTS} times in a row is split and every user's write is tried on its
+ * own, so one write the database keeps rejecting cannot hold back everyone else's. Writes that fail on their own
+ * are quarantined: later writes for the same user are held back behind them to keep their order, and they are
+ * retried every {@value #QUARANTINE_RETRY_MILLIS} milliseconds. A flush cannot free their room, so once quarantined
+ * users alone fill the limit, writes for any other user are refused with an error until the database accepts
+ * the quarantined ones again.
+ * </p>
+ */
+class WriteBehindQueue {
+    static final int MAX_BATCH_ATTEMPTS = 3;
+    static final long QUARANTINE_RETRY_MILLIS = 30_000L;
+
+    private final OfflineCommands offlineCommands;
+    private final StorageListener listener;
+    private final Object flushLock = new Object();
+    private Map<UUID, PendingWrite> pending = new LinkedHashMap<>();
+    private Map<UUID, PendingWrite> inFlight = Collections.emptyMap();
+    private final Map<UUID, PendingWrite> quarantine = new LinkedHashMap<>();
+    private int failedFlushes;
+    private long nextQuarantineRetry;
+
+    /**
+     * The batch size and pending limit are read from the current settings on every call, so a reload applies them
+     * to the next write.
+     */
+    WriteBehindQueue(OfflineCommands offlineCommands, StorageListener listener) {
+        this.offlineCommands = offlineCommands;
+        this.listener = listener;
+    }
+
+    private int batchSize() {
+        return offlineCommands.getSettings().getWriteBehindBatchSize();
+    }
+
+    private int maxPending() {
+        return offlineCommands.getSettings().getWriteBehindMaxPending();
+    }
+
+    /**
+     * Queues a write, flushing first if the queue is full and afterwards if a batch is complete.
+     * The flushes run on the calling thread, so this is only called from the storage thread.
+     *
+     * @param storage   the storage manager to write to
+     * @param uuid      the user the write belongs to
+     * @param operation the change to merge into the user's pending write
+     * @throws SQLException if the queue is still full after the flush, because the database keeps rejecting
+     *                      the quarantined writes; nothing was queued in that case
+     */
+    void enqueue(StorageManager storage, UUID uuid, Consumer<PendingWrite> operation) throws SQLException {
+        boolean full;
+        synchronized (this) {
+            full = isFull(uuid);
+        }
+        if (full) {
+            flush(storage);
+        }
+
+        int size;
+        synchronized (this) {
+            if (isFull(uuid)) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, String.format("Refusing the changes of %s, the writes of %d users are quarantined because the database keeps rejecting them.",
+                        uuid, quarantine.size()));
+                throw new SQLException("The write queue is full of writes the database keeps rejecting");
+            }
+            operation.accept(pending.computeIfAbsent(uuid, PendingWrite::new));
+            size = pending.size();
+        }
+        if (size >= batchSize()) {
+            flush(storage);
+        }
+    }
+
+    /**
+     * Queues a write without ever touching the database, so it is safe from server and region threads.
+     *
+     * @param uuid      the user the write belongs to
+     * @param operation the change to merge into the user's pending write
+     * @return false if the queue is full and nothing was queued
+     */
+    synchronized boolean offer(UUID uuid, Consumer<PendingWrite> operation) {
+        if (isFull(uuid)) {
+            return false;
+        }
+        operation.accept(pending.computeIfAbsent(uuid, PendingWrite::new));
+        return true;
+    }
+
+    /**
+     * A write for a user who is already buffered, pending or quarantined, only grows their existing write.
+     *
+     * @return true if no write for the given user can be buffered without going over the limit
+     */
+    private boolean isFull(UUID uuid) {
+        return pending.size() + quarantine.size() >= maxPending() && !pending.containsKey(uuid) && !quarantine.containsKey(uuid);
+    }
+
+    /**
+     * @return true if enough users are queued to be worth flushing right away
+     */
+    synchronized boolean isBatchFull() {
+        return pending.size() >= batchSize();
+    }
+
+    synchronized boolean isPending(UUID uuid) {
+        return pending.containsKey(uuid);
+    }
+
+    /**
+     * Checks whether the given user has changes that are queued or currently being written,
+     * i.e. changes that listeners have not been told about yet.
+     *
+     * @param uuid the user to check
+     * @return true if a write for the user is not yet committed
+     */
+    synchronized boolean isUncommitted(UUID uuid) {
+        return pending.containsKey(uuid) || inFlight.containsKey(uuid) || quarantine.containsKey(uuid);
+    }
+
+    /**
+     * @return the number of users whose writes are quarantined after failing on their own
+     */
+    synchronized int quarantineSize() {
+        return quarantine.size();
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Flushes the queue if the given user has unsaved changes, so that a following read sees them.
+     *
+     * @param storage the storage manager to write to
+     * @param uuid    the user about to be read
+     */
+    void flushIfPending(StorageManager storage, UUID uuid) {
+        if (isPending(uuid)) {
+            flush(storage);
+        }
+    }
+
+    /**
+     * Flushes the queue if anything is buffered, so that a following read over all users sees every change.
+     *
+     * @param storage the storage manager to write to
+     */
+    void flushIfAnyPending(StorageManager storage) {
+        if (size() > 0) {
+            flush(storage);
+        }
+    }
+
+    /**
+     * Persists everything currently buffered in one transaction. If the transaction fails the writes are
+     * put back in front of anything queued in the meantime and retried on the next flush, until the batch has
+     * failed {@value #MAX_BATCH_ATTEMPTS} times and is split up. Quarantined writes are retried once they are due.
+     *
+     * @param storage the storage manager to write to
+     */
+    void flush(StorageManager storage) {
+        flush(storage, false);
+    }
+
+    /**
+     * Persists everything buffered and retries every quarantined write right away. Writes still failing are
+     * logged as lost. Called once the storage has stopped accepting work, before the plugin disables.
+     *
+     * @param storage the storage manager to write to
+     */
+    void flushFinal(StorageManager storage) {
+        flush(storage, true);
+        synchronized (this) {
+            for (UUID uuid : quarantine.keySet()) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, "Discarding the unsaved changes of " + uuid + ", the database kept rejecting them.");
+            }
+            quarantine.clear();
+        }
+    }
+
+    private void flush(StorageManager storage, boolean retryQuarantine) {
+        synchronized (flushLock) {
+            Map<UUID, PendingWrite> batch;
+            Map<UUID, PendingWrite> retry = Collections.emptyMap();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (!quarantine.isEmpty() && (retryQuarantine || now >= nextQuarantineRetry)) {
+                    nextQuarantineRetry = now + QUARANTINE_RETRY_MILLIS;
+                    retry = new LinkedHashMap<>(quarantine);
+                    quarantine.clear();
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                for (Iterator<Map.Entry<UUID, PendingWrite>> iterator = batch.entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<UUID, PendingWrite> entry = iterator.next();
+                    PendingWrite held = quarantine.containsKey(entry.getKey()) ? quarantine.get(entry.getKey()) : retry.get(entry.getKey());
+                    if (held != null) {
+                        held.append(entry.getValue());
+                        iterator.remove();
+                    }
+                }
+                if (batch.isEmpty() && retry.isEmpty()) {
+                    return;
+                }
+                inFlight = new HashMap<>(batch);
+                inFlight.putAll(retry);
+            }
+
+            try {
+                if (!retry.isEmpty()) {
+                    applyEach(storage, retry);
+                }
+                if (!batch.isEmpty()) {
+                    applyBatch(storage, batch);
+                }
+            } finally {
+                synchronized (this) {
+                    inFlight = Collections.emptyMap();
+                }
+            }
+        }
+    }
+
+    private void applyBatch(StorageManager storage, Map<UUID, PendingWrite> batch) {
+        try {
+            storage.applyWrites(batch.values(), listener);
+            failedFlushes = 0;
+        } catch (SQLException e) {
+            if (++failedFlushes < MAX_BATCH_ATTEMPTS) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, String.format("Failed to flush %d pending user writes, retrying on next flush: %s", batch.size(), e.getMessage()));
+                requeue(batch);
+                return;
+            }
+            offlineCommands.getDebugLogger().log(Level.WARNING, String.format("Failed to flush %d pending user writes %d times, writing each user on their own: %s", batch.size(), failedFlushes, e.getMessage()));
+            failedFlushes = 0;
+            applyEach(storage, batch);
+        }
+    }
+
+    /**
+     * Persists every write in its own transaction and quarantines the ones that fail.
+     */
+    private void applyEach(StorageManager storage, Map<UUID, PendingWrite> writes) {
+        for (Map.Entry<UUID, PendingWrite> entry : writes.entrySet()) {
+            try {
+                storage.applyWrites(Collections.singletonList(entry.getValue()), listener);
+            } catch (SQLException e) {
+                offlineCommands.getDebugLogger().log(Level.WARNING, String.format("Failed to write the changes of %s, retrying in %d seconds: %s",
+                        entry.getKey(), QUARANTINE_RETRY_MILLIS / 1000L, e.getMessage()));
+                quarantine(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Quarantines a failed write, putting it in front of anything held back for the same user in the meantime.
+     */
+    private synchronized void quarantine(UUID uuid, PendingWrite write) {
+        PendingWrite newer = quarantine.remove(uuid);
+        if (newer != null) {
+            write.append(newer);
+        }
+        quarantine.put(uuid, write);
+        if (quarantine.size() == 1) {
+            nextQuarantineRetry = System.currentTimeMillis() + QUARANTINE_RETRY_MILLIS;
+        }
+    }
+
+    private synchronized void requeue(Map<UUID, PendingWrite> batch) {
+        for (Map.Entry<UUID, PendingWrite> entry : pending.entrySet()) {
+            PendingWrite older = batch.get(entry.getKey());
+            if (older != null) {
+                older.append(entry.getValue());
+            } else {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pending = batch;
+    }
+}
@@ -0,0 +1,39 @@
+package io.github.jochyoua.offlinecommands;
+
+import io.github.jochyoua.offlinecommands.api.DebugLogger;
+import io.github.jochyoua.offlinecommands.api.Settings;
+import org.bukkit.configuration.MemoryConfiguration;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds a stand-in for the plugin that only provides what the storage layer reads from it: the settings,
+ * the data folder and a debug logger. The storage manager is stubbed by the test once it has been opened.
+ */
+public final class TestPlugins {
+
+    private TestPlugins() {
+    }
+
+    /**
+     * @param dataFolder the folder database files are created in
+     * @param overrides  settings to change from their defaults, keyed by their path below {@code settings}
+     * @return the plugin mock
+     */
+    public static OfflineCommands mockPlugin(File dataFolder, Map<String, Object> overrides) {
+        TestServer.install();
+        MemoryConfiguration section = new MemoryConfiguration();
+        overrides.forEach(section::set);
+
+        OfflineCommands plugin = mock(OfflineCommands.class);
+        DebugLogger debugLogger = mock(DebugLogger.class);
+        when(plugin.getSettings()).thenReturn(Settings.load(section));
+        when(plugin.getDataFolder()).thenReturn(dataFolder);
+        when(plugin.getDebugLogger()).thenReturn(debugLogger);
+        return plugin;
+    }
+}
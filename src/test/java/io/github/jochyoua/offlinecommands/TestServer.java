@@ -0,0 +1,34 @@
+package io.github.jochyoua.offlinecommands;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Installs a stub {@link Server} so that code touching {@link Bukkit} statics, such as the default sound of
+ * {@link io.github.jochyoua.offlinecommands.storage.SoundStorage}, can run without a real server.
+ */
+public final class TestServer {
+
+    private TestServer() {
+    }
+
+    /**
+     * Installs the stub once per JVM; later calls do nothing.
+     */
+    public static synchronized void install() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        Server server = mock(Server.class);
+        when(server.getLogger()).thenReturn(Logger.getLogger("OfflineCommandsTest"));
+        when(server.getName()).thenReturn("TestServer");
+        when(server.getVersion()).thenReturn("git-Test (MC: 1.13)");
+        when(server.getBukkitVersion()).thenReturn("1.13-R0.1-SNAPSHOT");
+        Bukkit.setServer(server);
+    }
+}
@@ -0,0 +1,212 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.TestPlugins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Hammers {@link AsyncStorageManager} with adds, removals and consumes from many threads on the same users.
+ * <p>
+ * Every thread works on its own command identifiers, spread over users shared with every other thread, so the
+ * final state does not depend on how the threads interleave: it is the union of what each thread's operations
+ * leave behind when replayed one after another. The batch size and pending limit are tiny, so writes are
+ * constantly flushed, deferred to the storage thread and queued behind each other under the per-user locks.
+ * </p>
+ */
+class AsyncStorageManagerStressTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 400;
+    private static final int USERS = 16;
+
+    @TempDir
+    File dataFolder;
+
+    private StorageManager storage;
+    private AsyncStorageManager asyncStorage;
+    private final List<UUID> users = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("write-behind-batch-size", 4);
+        settings.put("write-behind-max-pending", 4);
+        settings.put("write-behind-flush-interval-millis", 50);
+        settings.put("user-cache-max-entries", 64);
+        OfflineCommands plugin = TestPlugins.mockPlugin(dataFolder, settings);
+        storage = new StorageManager(plugin);
+        storage.initializeDatabase();
+        when(plugin.getStorageManager()).thenReturn(storage);
+        asyncStorage = new AsyncStorageManager(plugin);
+        for (int i = 0; i < USERS; i++) {
+            users.add(new UUID(0L, i + 1L));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        asyncStorage.shutdown();
+        storage.closeConnection();
+    }
+
+    @Test
+    void concurrentWritesMatchTheSequentialResult() throws Exception {
+        List<Script> scripts = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            scripts.add(new Script(thread));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (Script script : scripts) {
+                results.add(workers.submit(() -> {
+                    start.await();
+                    script.runAgainst(asyncStorage);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        asyncStorage.flushWrites();
+
+        Map<UUID, Set<String>> expected = new TreeMap<>();
+        for (Script script : scripts) {
+            script.replayInto(expected);
+        }
+        assertEquals(expected, storedIdentifiers());
+        assertEquals(0, asyncStorage.getPendingWriteCount());
+    }
+
+    /**
+     * @return the stored identifiers of every user, failing on a command that is stored more than once
+     */
+    private Map<UUID, Set<String>> storedIdentifiers() throws Exception {
+        Map<UUID, Set<String>> stored = new TreeMap<>();
+        for (UserStorage user : storage.getUserStorageList()) {
+            Set<String> identifiers = new HashSet<>();
+            for (CommandStorage command : user.getCommands()) {
+                identifiers.add(command.getIdentifier().toLowerCase(Locale.ROOT));
+            }
+            assertEquals(user.getCommands().size(), identifiers.size(), "duplicate commands stored for " + user.getUuid());
+            stored.put(user.getUuid(), identifiers);
+        }
+        return stored;
+    }
+
+    /**
+     * A random but reproducible series of operations run by one thread on identifiers only it uses.
+     */
+    private class Script {
+        private final int thread;
+        private final List<Operation> operations = new ArrayList<>();
+
+        Script(int thread) {
+            this.thread = thread;
+            Random random = new Random(thread);
+            Map<String, UUID> live = new LinkedHashMap<>();
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                int choice = random.nextInt(4);
+                if (live.isEmpty() || choice < 2) {
+                    // Mixed case, so both the queue and the database have to match identifiers case-insensitively
+                    String identifier = "T" + thread + "c" + i;
+                    UUID uuid = users.get(random.nextInt(USERS));
+                    live.put(identifier, uuid);
+                    operations.add(new Operation(Kind.ADD, uuid, identifier));
+                    continue;
+                }
+                List<String> identifiers = new ArrayList<>(live.keySet());
+                String identifier = identifiers.get(random.nextInt(identifiers.size()));
+                UUID uuid = live.remove(identifier);
+                operations.add(new Operation(choice == 2 ? Kind.REMOVE : Kind.CONSUME, uuid,
+                        random.nextBoolean() ? identifier.toLowerCase(Locale.ROOT) : identifier));
+            }
+        }
+
+        void runAgainst(AsyncStorageManager asyncStorage) {
+            for (Operation operation : operations) {
+                List<String> identifiers = Collections.singletonList(operation.identifier);
+                switch (operation.kind) {
+                    case ADD:
+                        asyncStorage.addCommand(operation.uuid, "player" + operation.uuid.getLeastSignificantBits(),
+                                CommandStorage.builder().identifier(operation.identifier).commandValue("say " + operation.identifier).build()).join();
+                        break;
+                    case REMOVE:
+                        asyncStorage.removeCommands(operation.uuid, identifiers).join();
+                        break;
+                    case CONSUME:
+                        // A join claims the command first and deletes it once it has run; the add must be visible by now
+                        Set<String> claimed = asyncStorage.claimCommands(operation.uuid, identifiers).join();
+                        assertEquals(Collections.singleton(operation.identifier.toLowerCase(Locale.ROOT)), claimed,
+                                "thread " + thread + " could not claim " + operation.identifier);
+                        asyncStorage.removeCommands(operation.uuid, identifiers).join();
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Applies the operations one after another to a plain map, the result a single thread would leave behind.
+         */
+        void replayInto(Map<UUID, Set<String>> state) {
+            for (Operation operation : operations) {
+                String key = operation.identifier.toLowerCase(Locale.ROOT);
+                if (operation.kind == Kind.ADD) {
+                    state.computeIfAbsent(operation.uuid, uuid -> new HashSet<>()).add(key);
+                    continue;
+                }
+                Set<String> identifiers = state.get(operation.uuid);
+                identifiers.remove(key);
+                if (identifiers.isEmpty()) {
+                    state.remove(operation.uuid);
+                }
+            }
+        }
+    }
+
+    private enum Kind {
+        ADD, REMOVE, CONSUME
+    }
+
+    private static class Operation {
+        private final Kind kind;
+        private final UUID uuid;
+        private final String identifier;
+
+        Operation(Kind kind, UUID uuid, String identifier) {
+            this.kind = kind;
+            this.uuid = uuid;
+            this.identifier = identifier;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jochyoua.offlinecommands.TestServer;
+import org.bukkit.Sound;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares the bytes allocated per row by the {@code ObjectMapper} tree path that stored commands used to go
+ * through, a {@code Map} per row followed by {@link CommandStorage#deserialize(Map)}, with {@link CommandStorageCodec}.
+ * <p>
+ * Allocation is read from the current thread's counter, so the numbers do not depend on garbage collection
+ * timing. Each path is warmed up before it is measured, and a failure reports both figures and their ratio.
+ * </p>
+ */
+class CommandStorageCodecAllocationTest {
+    private static final int ROWS = 2_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final TypeReference<Map<String, Object>> COMMAND_TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static volatile Object sink;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeAll
+    static void setUp() {
+        TestServer.install();
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Thread allocation counters are not available");
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "Thread allocation counters are not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void readingJsonRowsAllocatesLessThanTheTreePath() throws Exception {
+        List<CommandStorage> commands = commands();
+        List<String> jsonRows = new ArrayList<>(ROWS);
+        List<byte[]> jsonBytes = new ArrayList<>(ROWS);
+        for (CommandStorage command : commands) {
+            String json = objectMapper.writeValueAsString(command.serialize());
+            jsonRows.add(json);
+            jsonBytes.add(json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        RowTask tree = () -> {
+            for (String json : jsonRows) {
+                consume(CommandStorage.deserialize(objectMapper.readValue(json, COMMAND_TYPE)));
+            }
+        };
+        RowTask streaming = () -> {
+            for (byte[] json : jsonBytes) {
+                consume(CommandStorageCodec.decode(json));
+            }
+        };
+
+        long treeBytes = bytesPerRow(tree);
+        long streamingBytes = bytesPerRow(streaming);
+        assertEquals(commands, decodeAll(jsonBytes));
+        assertTrue(streamingBytes < treeBytes, () -> describe("streaming read", treeBytes, streamingBytes));
+    }
+
+    @Test
+    void binaryRowsAllocateLessThanTheTreePath() throws Exception {
+        List<CommandStorage> commands = commands();
+        List<String> jsonRows = new ArrayList<>(ROWS);
+        List<byte[]> binaryRows = new ArrayList<>(ROWS);
+        for (CommandStorage command : commands) {
+            jsonRows.add(objectMapper.writeValueAsString(command.serialize()));
+            binaryRows.add(CommandStorageCodec.encode(command, 0));
+        }
+
+        RowTask treeRead = () -> {
+            for (String json : jsonRows) {
+                consume(CommandStorage.deserialize(objectMapper.readValue(json, COMMAND_TYPE)));
+            }
+        };
+        RowTask binaryRead = () -> {
+            for (byte[] row : binaryRows) {
+                consume(CommandStorageCodec.decode(row));
+            }
+        };
+        RowTask treeWrite = () -> {
+            for (CommandStorage command : commands) {
+                consume(objectMapper.writeValueAsString(command.serialize()));
+            }
+        };
+        RowTask binaryWrite = () -> {
+            for (CommandStorage command : commands) {
+                consume(CommandStorageCodec.encode(command, 0));
+            }
+        };
+
+        long treeReadBytes = bytesPerRow(treeRead);
+        long binaryReadBytes = bytesPerRow(binaryRead);
+        long treeWriteBytes = bytesPerRow(treeWrite);
+        long binaryWriteBytes = bytesPerRow(binaryWrite);
+        assertEquals(commands, decodeAll(binaryRows));
+        assertTrue(binaryReadBytes < treeReadBytes, () -> describe("binary read", treeReadBytes, binaryReadBytes));
+        assertTrue(binaryWriteBytes < treeWriteBytes, () -> describe("binary write", treeWriteBytes, binaryWriteBytes));
+    }
+
+    private static List<CommandStorage> commands() {
+        List<CommandStorage> commands = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            commands.add(CommandStorage.builder()
+                    .identifier("cmd" + i)
+                    .executor(i % 2 == 0 ? CommandStorage.Executor.CONSOLE : CommandStorage.Executor.PLAYER)
+                    .commandValue("give %player% diamond " + (i % 64 + 1))
+                    .message(i % 3 == 0 ? "&aYou received a reward" : "")
+                    .requiredPermission(i % 5 == 0 ? "offlinecommands.reward" : "")
+                    .soundStorage(i % 4 == 0 ? SoundStorage.builder().sound(Sound.BLOCK_NOTE_BLOCK_CHIME).volume(0.5F).pitch(1.5F).build() : null)
+                    .recurring(i % 7 == 0)
+                    .build());
+        }
+        return commands;
+    }
+
+    private static List<CommandStorage> decodeAll(List<byte[]> rows) throws Exception {
+        List<CommandStorage> decoded = new ArrayList<>(rows.size());
+        for (byte[] row : rows) {
+            decoded.add(CommandStorageCodec.decode(row));
+        }
+        return decoded;
+    }
+
+    /**
+     * Runs the task until it is warm and returns the lowest number of bytes it allocated per row in a measured round.
+     */
+    private static long bytesPerRow(RowTask task) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            task.run();
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            best = Math.min(best, allocated / ROWS);
+        }
+        return best;
+    }
+
+    private static String describe(String path, long treeBytes, long codecBytes) {
+        return String.format("%s allocated %d bytes per row, tree path %d (%.1fx)",
+                path, codecBytes, treeBytes, (double) treeBytes / Math.max(1, codecBytes));
+    }
+
+    /**
+     * Keeps the result reachable so the work producing it cannot be optimised away.
+     */
+    private static void consume(Object value) {
+        sink = value;
+    }
+
+    @FunctionalInterface
+    private interface RowTask {
+        void run() throws Exception;
+    }
+}
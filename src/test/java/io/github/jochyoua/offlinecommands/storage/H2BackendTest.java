@@ -0,0 +1,12 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+/**
+ * Runs the {@link StorageBackendConformanceTest} suite against {@link H2Backend}.
+ */
+class H2BackendTest extends StorageBackendConformanceTest {
+
+    @Override
+    String backendName() {
+        return H2Backend.NAME;
+    }
+}
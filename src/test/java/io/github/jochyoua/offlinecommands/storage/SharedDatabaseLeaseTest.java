@@ -0,0 +1,210 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.TestPlugins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two servers sharing one database file, each with its own {@link StorageManager} and connections, as with
+ * {@code shared-database} set. Leases are taken with explicit clock values, so expiry is tested without waiting.
+ */
+class SharedDatabaseLeaseTest {
+    private static final String SERVER_A = "server-a";
+    private static final String SERVER_B = "server-b";
+    private static final long LEASE_MILLIS = 30_000L;
+    private static final int COMMANDS = 5;
+
+    @TempDir
+    File dataFolder;
+
+    private StorageManager serverA;
+    private StorageManager serverB;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("shared-database", true);
+        OfflineCommands plugin = TestPlugins.mockPlugin(dataFolder, settings);
+        serverA = new StorageManager(plugin);
+        serverA.initializeDatabase();
+        serverB = new StorageManager(plugin);
+        serverB.initializeDatabase();
+    }
+
+    @AfterEach
+    void tearDown() {
+        serverA.closeConnection();
+        serverB.closeConnection();
+    }
+
+    @Test
+    void onlyOneServerHoldsTheLease() throws Exception {
+        UUID uuid = storeCommands(1);
+        long now = System.currentTimeMillis();
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverA.acquireLease(uuid, SERVER_A, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.HELD_ELSEWHERE, serverB.acquireLease(uuid, SERVER_B, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverA.acquireLease(uuid, SERVER_A, now, now + LEASE_MILLIS, false));
+        assertEquals(Collections.emptySet(), serverA.renewLeases(Collections.singletonList(uuid), SERVER_A, now + 2 * LEASE_MILLIS));
+
+        serverB.releaseLeases(Collections.singletonList(uuid), SERVER_B);
+        assertEquals(StorageManager.LeaseResult.HELD_ELSEWHERE, serverB.acquireLease(uuid, SERVER_B, now, now + LEASE_MILLIS, false));
+
+        serverA.releaseLeases(Collections.singletonList(uuid), SERVER_A);
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverB.acquireLease(uuid, SERVER_B, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.NOT_STORED, serverB.acquireLease(new UUID(0L, 999L), SERVER_B, now, now + LEASE_MILLIS, false));
+    }
+
+    @Test
+    void expiredLeaseIsTakenOver() throws Exception {
+        UUID uuid = storeCommands(1);
+        long now = System.currentTimeMillis();
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverA.acquireLease(uuid, SERVER_A, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.HELD_ELSEWHERE, serverB.acquireLease(uuid, SERVER_B, now + LEASE_MILLIS - 1, now + 2 * LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverB.acquireLease(uuid, SERVER_B, now + LEASE_MILLIS + 1, now + 2 * LEASE_MILLIS, false));
+
+        assertEquals(Collections.singleton(uuid), serverA.renewLeases(Collections.singletonList(uuid), SERVER_A, now + 3 * LEASE_MILLIS));
+        assertEquals(StorageManager.LeaseResult.HELD_ELSEWHERE, serverA.acquireLease(uuid, SERVER_A, now + LEASE_MILLIS + 2, now + 3 * LEASE_MILLIS, false));
+    }
+
+    @Test
+    void takeoverRunsUnconfirmedCommandsOnceWithRetry() throws Exception {
+        UUID uuid = storeCommands(1);
+        List<String> identifiers = identifiers(uuid);
+        long now = System.currentTimeMillis();
+        Map<String, Integer> executions = new HashMap<>();
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverA.acquireLease(uuid, SERVER_A, now, now + LEASE_MILLIS, true));
+        Set<String> claimedByA = serverA.claimCommands(uuid, identifiers);
+        assertEquals(COMMANDS, claimedByA.size());
+        // Server A runs and confirms the first command, then stops before it gets to the others
+        String confirmed = identifiers.get(0);
+        executions.merge(confirmed, 1, Integer::sum);
+        serverA.removeCommands(uuid, Collections.singletonList(confirmed));
+
+        assertTrue(serverB.claimCommands(uuid, identifiers).isEmpty(), "claimed commands must not be handed out twice");
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverB.acquireLease(uuid, SERVER_B, now + LEASE_MILLIS + 1, now + 2 * LEASE_MILLIS, true));
+        for (String identifier : serverB.claimCommands(uuid, identifiers)) {
+            executions.merge(identifier, 1, Integer::sum);
+        }
+
+        for (String identifier : identifiers) {
+            assertEquals(1, executions.get(identifier), identifier + " should have run exactly once");
+        }
+    }
+
+    @Test
+    void takeoverDiscardsUnconfirmedCommandsWithoutRetry() throws Exception {
+        UUID uuid = storeCommands(1);
+        List<String> identifiers = identifiers(uuid);
+        long now = System.currentTimeMillis();
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverA.acquireLease(uuid, SERVER_A, now, now + LEASE_MILLIS, false));
+        assertEquals(COMMANDS, serverA.claimCommands(uuid, identifiers).size());
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, serverB.acquireLease(uuid, SERVER_B, now + LEASE_MILLIS + 1, now + 2 * LEASE_MILLIS, false));
+        assertTrue(serverB.claimCommands(uuid, identifiers).isEmpty(), "commands that may have run must not run again");
+        UserStorage user = serverB.getUser(uuid);
+        assertTrue(user == null || user.getCommands().isEmpty());
+    }
+
+    @Test
+    void competingServersRunEveryCommandExactlyOnce() throws Exception {
+        List<UUID> uuids = new ArrayList<>();
+        Map<UUID, List<String>> identifiers = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            UUID uuid = storeCommands(i + 1);
+            uuids.add(uuid);
+            identifiers.put(uuid, identifiers(uuid));
+        }
+        Map<String, Integer> executions = new ConcurrentHashMap<>();
+
+        ExecutorService servers = Executors.newFixedThreadPool(2);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?> a = servers.submit(() -> {
+                start.await();
+                joinEveryone(serverA, SERVER_A, uuids, identifiers, executions);
+                return null;
+            });
+            Future<?> b = servers.submit(() -> {
+                start.await();
+                List<UUID> reversed = new ArrayList<>(uuids);
+                Collections.reverse(reversed);
+                joinEveryone(serverB, SERVER_B, reversed, identifiers, executions);
+                return null;
+            });
+            start.countDown();
+            a.get(2, TimeUnit.MINUTES);
+            b.get(2, TimeUnit.MINUTES);
+        } finally {
+            servers.shutdownNow();
+        }
+
+        for (List<String> userIdentifiers : identifiers.values()) {
+            for (String identifier : userIdentifiers) {
+                assertEquals(1, executions.get(identifier), identifier + " should have run exactly once");
+            }
+        }
+        assertEquals(0, serverA.countUsers());
+    }
+
+    /**
+     * Does what a join does for every user in turn: lease them, claim their commands, run and delete what was
+     * claimed and give the lease back. Users leased by the other server are skipped, as if they left again.
+     */
+    private static void joinEveryone(StorageManager storage, String owner, List<UUID> uuids,
+                                     Map<UUID, List<String>> identifiers, Map<String, Integer> executions) throws Exception {
+        for (UUID uuid : uuids) {
+            long now = System.currentTimeMillis();
+            if (storage.acquireLease(uuid, owner, now, now + LEASE_MILLIS, false) != StorageManager.LeaseResult.ACQUIRED) {
+                continue;
+            }
+            Set<String> claimed = storage.claimCommands(uuid, identifiers.get(uuid));
+            for (String identifier : claimed) {
+                executions.merge(identifier, 1, Integer::sum);
+            }
+            storage.removeCommands(uuid, claimed);
+            storage.releaseLeases(Collections.singletonList(uuid), owner);
+        }
+    }
+
+    private UUID storeCommands(long id) throws Exception {
+        UUID uuid = new UUID(0L, id);
+        for (int i = 0; i < COMMANDS; i++) {
+            serverA.addCommand(uuid, "player" + id, CommandStorage.builder().identifier("u" + id + "c" + i).build());
+        }
+        return uuid;
+    }
+
+    private List<String> identifiers(UUID uuid) throws Exception {
+        List<String> identifiers = new ArrayList<>();
+        for (CommandStorage command : serverB.getUser(uuid).getCommands()) {
+            identifiers.add(command.getIdentifier());
+        }
+        assertEquals(COMMANDS, identifiers.size());
+        return identifiers;
+    }
+}
@@ -0,0 +1,12 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+/**
+ * Runs the {@link StorageBackendConformanceTest} suite against {@link SqliteBackend}.
+ */
+class SqliteBackendTest extends StorageBackendConformanceTest {
+
+    @Override
+    String backendName() {
+        return SqliteBackend.NAME;
+    }
+}
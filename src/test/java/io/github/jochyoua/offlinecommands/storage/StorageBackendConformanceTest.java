@@ -0,0 +1,295 @@
+package io.github.jochyoua.offlinecommands.storage;
+
+import io.github.jochyoua.offlinecommands.OfflineCommands;
+import io.github.jochyoua.offlinecommands.TestPlugins;
+import org.bukkit.Sound;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The behaviour every {@link StorageBackend} has to show through {@link StorageManager}. Each backend runs this
+ * suite through a subclass, so the portable SQL is checked against every engine it is meant to run on. The
+ * SQLite-only statements that upgrade legacy data are not part of it, as other backends never run them.
+ */
+abstract class StorageBackendConformanceTest {
+    private static final UUID USER = new UUID(0L, 1L);
+    private static final String OWNER = "server-a";
+    private static final long LEASE_MILLIS = 30_000L;
+
+    @TempDir
+    File dataFolder;
+
+    private OfflineCommands plugin;
+    private StorageManager storage;
+
+    /**
+     * @return the backend under test, one of {@link StorageBackend#NAMES}
+     */
+    abstract String backendName();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        plugin = TestPlugins.mockPlugin(dataFolder, Collections.<String, Object>singletonMap("database-backend", backendName()));
+        storage = open(dataFolder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.closeConnection();
+    }
+
+    @Test
+    void storesAndLoadsCommandsInOrder() throws Exception {
+        CommandStorage first = CommandStorage.builder()
+                .identifier("first")
+                .executor(CommandStorage.Executor.PLAYER)
+                .commandValue("spawn")
+                .message("&aWelcome back")
+                .requiredPermission("offlinecommands.spawn")
+                .soundStorage(SoundStorage.builder().sound(Sound.BLOCK_NOTE_BLOCK_CHIME).volume(0.5F).pitch(2.0F).build())
+                .recurring(true)
+                .build();
+        storage.addCommand(USER, "Steve", first);
+        storage.addCommand(USER, "Steve", command("second"));
+
+        assertEquals(backendName(), storage.getBackend().getName());
+        UserStorage user = storage.getUser(USER);
+        assertNotNull(user);
+        assertEquals("Steve", user.getUsername());
+        assertEquals(Arrays.asList(first, command("second")), user.getCommands());
+        assertNull(storage.getUser(new UUID(0L, 2L)));
+    }
+
+    @Test
+    void removingTheLastCommandRemovesTheUser() throws Exception {
+        storage.addCommand(USER, "Steve", command("one"));
+        storage.addCommand(USER, "Steve", command("two"));
+
+        storage.removeCommands(USER, Collections.singletonList("one"));
+        assertEquals(Collections.singletonList(command("two")), storage.getUser(USER).getCommands());
+
+        storage.removeCommands(USER, Collections.singletonList("two"));
+        assertNull(storage.getUser(USER));
+        assertEquals(0, storage.countUsers());
+
+        storage.addCommand(USER, "Steve", command("three"));
+        storage.removeUser(USER);
+        assertNull(storage.getUser(USER));
+    }
+
+    @Test
+    void claimsHandEachCommandOutOnce() throws Exception {
+        storage.addCommand(USER, "Steve", command("one"));
+        storage.addCommand(USER, "Steve", command("two"));
+        List<String> identifiers = Arrays.asList("one", "two", "missing");
+
+        assertEquals(new HashSet<>(Arrays.asList("one", "two")), storage.claimCommands(USER, identifiers));
+        assertTrue(storage.claimCommands(USER, identifiers).isEmpty());
+
+        storage.releaseClaims(USER, Collections.singletonList("two"));
+        assertEquals(Collections.singleton("two"), storage.claimCommands(USER, identifiers));
+    }
+
+    @Test
+    void recoveredClaimsAreQueuedAgainOrDiscarded() throws Exception {
+        storage.addCommand(USER, "Steve", command("one"));
+        storage.claimCommands(USER, Collections.singletonList("one"));
+        assertEquals(1, storage.recoverClaims(true));
+        assertEquals(Collections.singleton("one"), storage.claimCommands(USER, Collections.singletonList("one")));
+
+        assertEquals(1, storage.recoverClaims(false));
+        assertNull(storage.getUser(USER));
+        assertEquals(0, storage.recoverClaims(false));
+    }
+
+    @Test
+    void leasesAreExclusiveUntilReleasedOrExpired() throws Exception {
+        storage.addCommand(USER, "Steve", command("one"));
+        long now = System.currentTimeMillis();
+
+        assertEquals(StorageManager.LeaseResult.NOT_STORED, storage.acquireLease(new UUID(0L, 2L), OWNER, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, storage.acquireLease(USER, OWNER, now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.HELD_ELSEWHERE, storage.acquireLease(USER, "server-b", now, now + LEASE_MILLIS, false));
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, storage.acquireLease(USER, OWNER, now, now + LEASE_MILLIS, false));
+
+        storage.claimCommands(USER, Collections.singletonList("one"));
+        assertEquals(0, storage.recoverClaims(true), "claims of a leased user belong to its holder");
+
+        assertTrue(storage.renewLeases(Collections.singletonList(USER), OWNER, now + 2 * LEASE_MILLIS).isEmpty());
+        assertEquals(Collections.singleton(USER), storage.renewLeases(Collections.singletonList(USER), "server-b", now + 2 * LEASE_MILLIS));
+
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, storage.acquireLease(USER, "server-b", now + 2 * LEASE_MILLIS + 1, now + 3 * LEASE_MILLIS, true));
+        assertEquals(Collections.singleton("one"), storage.claimCommands(USER, Collections.singletonList("one")),
+                "the takeover queues the unconfirmed claim again");
+
+        storage.releaseLeases(Collections.singletonList(USER), "server-b");
+        assertEquals(StorageManager.LeaseResult.ACQUIRED, storage.acquireLease(USER, OWNER, now, now + LEASE_MILLIS, false));
+    }
+
+    @Test
+    void pagesFollowUuidOrder() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int i = 25; i >= 1; i--) {
+            storage.addCommand(new UUID(0L, i), "player" + i, command("c" + i));
+        }
+        for (int i = 1; i <= 25; i++) {
+            keys.add(new UUID(0L, i).toString());
+        }
+        assertEquals(25, storage.countUsers());
+
+        List<String> paged = new ArrayList<>();
+        String cursor = "";
+        List<UserStorage> page;
+        while (!(page = storage.getUsersAfter(cursor, 10)).isEmpty()) {
+            assertTrue(page.size() <= 10);
+            for (UserStorage user : page) {
+                paged.add(user.getUuid().toString());
+                assertEquals(Collections.singletonList(command("c" + user.getUuid().getLeastSignificantBits())), user.getCommands());
+            }
+            cursor = page.get(page.size() - 1).getUuid().toString();
+        }
+        assertEquals(keys, paged);
+
+        assertEquals(keys.get(9), storage.getUserKeyAfter("", 9));
+        assertEquals(keys.get(24), storage.getUserKeyAfter(keys.get(9), 14));
+        assertNull(storage.getUserKeyAfter(keys.get(9), 15));
+
+        List<String> streamed = new ArrayList<>();
+        storage.forEachUser(user -> streamed.add(user.getUuid().toString()), true);
+        assertEquals(keys, streamed);
+    }
+
+    @Test
+    void upsertReplacesTheQueueAndUsername() throws Exception {
+        storage.addCommand(USER, "Steve", command("old"));
+        storage.addCommand(USER, "Alex", command("kept"));
+        assertEquals("Alex", storage.getUser(USER).getUsername());
+
+        storage.addOrUpdateUser(UserStorage.builder()
+                .uuid(USER)
+                .username("Herobrine")
+                .commands(new ArrayList<>(Arrays.asList(command("new1"), command("new2"))))
+                .build());
+
+        UserStorage user = storage.getUser(USER);
+        assertEquals("Herobrine", user.getUsername());
+        assertEquals(Arrays.asList(command("new1"), command("new2")), user.getCommands());
+        assertEquals(1, storage.countUsers());
+    }
+
+    @Test
+    void identifiersMatchIgnoringCase() throws Exception {
+        storage.addCommand(USER, "Steve", command("MixedCase"));
+
+        assertEquals("say MixedCase", storage.getCommandFromDatabase("mixedcase").getCommandValue());
+        assertEquals("say MixedCase", storage.getCommandFromDatabase("MIXEDCASE").getCommandValue());
+        assertNull(storage.getCommandFromDatabase("other"));
+
+        assertEquals(Collections.singleton("mixedcase"), storage.claimCommands(USER, Collections.singletonList("MIXEDcase")));
+        storage.removeCommands(USER, Collections.singletonList("MIXEDCASE"));
+        assertNull(storage.getCommandFromDatabase("MixedCase"));
+    }
+
+    @Test
+    void convertsCommandsStoredAsJson() throws Exception {
+        if (!storage.getBackend().supportsLegacyFormats()) {
+            assertEquals(-1, storage.convertJsonCommands(0L, 100));
+            return;
+        }
+        try (Connection connection = storage.getBackend().openConnection()) {
+            try (PreparedStatement user = connection.prepareStatement("INSERT INTO UserStorage(uuid, username) VALUES(?, ?)")) {
+                user.setString(1, USER.toString());
+                user.setString(2, "Steve");
+                user.executeUpdate();
+            }
+            try (PreparedStatement command = connection.prepareStatement(
+                    "INSERT INTO CommandStorage(uuid, identifier, executor, recurring, command) VALUES(?, ?, ?, ?, ?)")) {
+                command.setString(1, USER.toString());
+                command.setString(2, "legacy");
+                command.setString(3, "PLAYER");
+                command.setBoolean(4, true);
+                command.setString(5, "{\"identifier\":\"Legacy\",\"executor\":\"PLAYER\",\"commandValue\":\"say hi\"," +
+                        "\"message\":\"\",\"requiredPermission\":\"\",\"soundStorage\":null,\"recurring\":true}");
+                command.executeUpdate();
+            }
+        }
+        CommandStorage expected = CommandStorage.builder()
+                .identifier("Legacy")
+                .executor(CommandStorage.Executor.PLAYER)
+                .commandValue("say hi")
+                .recurring(true)
+                .build();
+        assertEquals(Collections.singletonList(expected), storage.getUser(USER).getCommands());
+
+        long lastId = storage.convertJsonCommands(0L, 100);
+        assertTrue(lastId > 0);
+        assertEquals(-1, storage.convertJsonCommands(lastId, 100));
+        assertEquals(Collections.singletonList(expected), storage.getUser(USER).getCommands());
+        try (Connection connection = storage.getBackend().openConnection();
+             Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT typeof(command) FROM CommandStorage")) {
+            assertTrue(rs.next());
+            assertEquals("blob", rs.getString(1));
+        }
+    }
+
+    @Test
+    void copiesIntoAnEmptyDatabaseOnly() throws Exception {
+        storage.addCommand(USER, "Steve", command("one"));
+        storage.addCommand(new UUID(0L, 2L), "Alex", command("two"));
+
+        File targetFolder = new File(dataFolder, "target");
+        assertTrue(targetFolder.mkdirs());
+        StorageManager target = open(targetFolder);
+        try {
+            assertEquals(2, storage.copyTo(target, 1));
+            assertEquals(storage.getUserStorageList(), target.getUserStorageList());
+
+            storage.removeCommands(USER, Collections.singletonList("one"));
+            assertThrows(SQLException.class, () -> storage.copyTo(target, 1));
+            assertEquals(Collections.singletonList(command("one")), target.getUser(USER).getCommands(),
+                    "a refused copy leaves the target as it was");
+
+            try (Connection connection = target.getBackend().openConnection();
+                 Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("INSERT INTO StorageCopy(source, started) VALUES('" + backendName() + "', 0)");
+            }
+            assertEquals(1, storage.copyTo(target, 1), "the leftovers of an interrupted copy are replaced");
+            assertEquals(storage.getUserStorageList(), target.getUserStorageList());
+            assertNull(target.getUser(USER));
+        } finally {
+            target.closeConnection();
+        }
+    }
+
+    private StorageManager open(File folder) throws SQLException {
+        StorageManager manager = new StorageManager(plugin, StorageBackend.create(backendName(), plugin.getSettings(), folder));
+        manager.initializeDatabase();
+        return manager;
+    }
+
+    private static CommandStorage command(String identifier) {
+        return CommandStorage.builder().identifier(identifier).commandValue("say " + identifier).build();
+    }
+}